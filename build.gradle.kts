@@ -4,6 +4,7 @@ plugins {
     alias(libs.plugins.shadow)
     alias(libs.plugins.versions)
     alias(libs.plugins.versionsFilter)
+    alias(libs.plugins.jmh)
 }
 
 versionsFilter {
@@ -42,6 +43,38 @@ java {
     targetCompatibility = JavaVersion.VERSION_21
 }
 
+// ./gradlew jmh, results are in build/results/jmh/results.json
+jmh {
+    jmhVersion = libs.versions.jmhCore
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    // allocation rate per operation
+    profilers = listOf("gc")
+    resultFormat = "JSON"
+    // i.e. ./gradlew jmh -Pjmh.includes=M3uParserBenchmark
+    providers.gradleProperty("jmh.includes").orNull?.let { includes = listOf(it) }
+}
+
+// end-to-end load test with embedded fake provider: ./gradlew loadTest -Ploadtest.devices=200
+val loadtest: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations[loadtest.implementationConfigurationName].extendsFrom(configurations.implementation.get())
+configurations[loadtest.runtimeOnlyConfigurationName].extendsFrom(configurations.runtimeOnly.get())
+
+tasks.register<JavaExec>("loadTest") {
+    group = "verification"
+    description = "Runs proxy under load of simulated devices"
+    classpath = loadtest.runtimeClasspath
+    mainClass.set("com.kvaster.iptv.loadtest.LoadTest")
+    jvmArgs("-Xmx1g")
+    // all loadtest.* project properties are passed to load test
+    systemProperties(providers.gradlePropertiesPrefixedBy("loadtest.").get())
+}
+
 application {
     mainClass.set("com.kvaster.iptv.App")
 }
@@ -0,0 +1,69 @@
+package com.kvaster.iptv;
+
+import java.util.concurrent.TimeUnit;
+
+import com.kvaster.iptv.bench.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Hls playlist reload as it is done by info poller: rewrite of upstream playlist and rendering for user.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HlsRewriterBenchmark {
+    private static final String URL = "http://stream.example.com/live/user/pass/1/index.m3u8";
+    private static final String BASE_URL = "http://proxy.example.com:8080/ch1";
+    private static final int RELOADS = 64;
+
+    @Param({"6", "30"})
+    int segments;
+
+    // consecutive reloads of live playlist
+    String[] playlists;
+    int reload;
+
+    HlsRewriter rewriter;
+    IptvServerChannel.Streams streams;
+
+    @Setup
+    public void setup() {
+        playlists = new String[RELOADS];
+        for (int i = 0; i < RELOADS; i++) {
+            playlists[i] = Fixtures.hlsPlaylist(segments, 1000 + i);
+        }
+
+        rewriter = new HlsRewriter();
+        streams = new IptvServerChannel.Streams();
+        rewriter.rewrite(URL, playlists[0], streams);
+    }
+
+    @Benchmark
+    public IptvServerChannel.Streams reload() {
+        IptvServerChannel.Streams s = new IptvServerChannel.Streams();
+        rewriter.rewrite(URL, playlists[reload++ & (RELOADS - 1)], s);
+        return s;
+    }
+
+    @Benchmark
+    public IptvServerChannel.Streams reloadAndRender() {
+        IptvServerChannel.Streams s = reload();
+        s.render(BASE_URL, "user-0123456789abcdef");
+        return s;
+    }
+
+    /**
+     * Same playlist requested again by client - rendered playlist is memoized.
+     */
+    @Benchmark
+    public byte[] render() {
+        return streams.render(BASE_URL, "user-0123456789abcdef");
+    }
+}
@@ -0,0 +1,169 @@
+package com.kvaster.iptv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kvaster.utils.timer.HashedWheelTimer;
+import io.undertow.Undertow;
+import io.undertow.util.SameThreadExecutor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Stream pump: in-memory upstream chunks are sent to client through {@link IptvStream} by real undertow listener
+ * on loopback. Client is plain socket, so client side allocations are not counted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IptvStreamBenchmark {
+    private static final int STREAM_BYTES = 8 * 1024 * 1024;
+
+    // upstream chunk size - java http client delivers 16k chunks
+    @Param({"16384", "65536"})
+    int chunkSize;
+
+    HashedWheelTimer timer;
+    Undertow undertow;
+    int port;
+
+    IptvUser user;
+    StreamBufferLimits limits;
+    IptvMetrics.Server metrics;
+
+    ByteBuffer chunk;
+    byte[] request;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+
+        timer = new HashedWheelTimer("bench-timer", 10, TimeUnit.MILLISECONDS, 512);
+        user = new IptvUser("bench", timer, (id, u) -> {});
+        limits = new StreamBufferLimits(2 * 1024 * 1024, 128 * 1024 * 1024, false);
+        metrics = new IptvMetrics().server("bench");
+
+        chunk = ByteBuffer.allocate(chunkSize);
+        request = ("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        undertow = Undertow.builder()
+                .addHttpListener(port, "127.0.0.1")
+                .setHandler((exchange) -> {
+                    exchange.setResponseContentLength(STREAM_BYTES);
+                    exchange.dispatch(SameThreadExecutor.INSTANCE, () -> new ChunkPublisher(chunk, STREAM_BYTES / chunkSize).subscribe(
+                            new IptvStream(exchange, "", user, 60_000, 60_000, timer, limits, metrics, null, System.nanoTime())
+                    ));
+                })
+                .build();
+        undertow.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        undertow.stop();
+        timer.stop();
+    }
+
+    @Benchmark
+    public long stream() throws IOException {
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = s.getOutputStream();
+            out.write(request);
+            out.flush();
+
+            InputStream in = s.getInputStream();
+            byte[] buf = new byte[64 * 1024];
+            long total = 0;
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                total += n;
+            }
+
+            if (total < STREAM_BYTES) {
+                throw new IOException("stream is not complete: " + total);
+            }
+
+            return total;
+        }
+    }
+
+    /**
+     * Emits same chunk given number of times according to demand, like http client body publisher.
+     */
+    private static class ChunkPublisher implements Flow.Publisher<List<ByteBuffer>>, Flow.Subscription {
+        private final ByteBuffer chunk;
+        private final int count;
+
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private Flow.Subscriber<? super List<ByteBuffer>> subscriber;
+        // accessed only by drain loop
+        private int sent;
+        private boolean completed;
+        private volatile boolean cancelled;
+
+        ChunkPublisher(ByteBuffer chunk, int count) {
+            this.chunk = chunk;
+            this.count = count;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super List<ByteBuffer>> subscriber) {
+            this.subscriber = subscriber;
+            subscriber.onSubscribe(this);
+        }
+
+        @Override
+        public void request(long n) {
+            demand.addAndGet(n);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void drain() {
+            // subscriber requests more from onNext - emit in a loop instead of recursion
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            do {
+                while (!cancelled && sent < count && demand.get() > 0) {
+                    demand.decrementAndGet();
+                    sent++;
+                    subscriber.onNext(List.of(chunk.duplicate()));
+                }
+
+                if (!cancelled && sent == count && !completed) {
+                    completed = true;
+                    subscriber.onComplete();
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.kvaster.iptv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.kvaster.iptv.bench.Fixtures;
+import com.kvaster.iptv.m3u.M3uChannel;
+import com.kvaster.iptv.m3u.M3uParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Playlist rendering for /m3u requests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class M3uTemplateBenchmark {
+    private static final String BASE_URL = "http://proxy.example.com:8080";
+    // more users then gzip cache entries - each gzip request is rendered
+    private static final int USERS = 64;
+
+    @Param({"10000"})
+    int channels;
+
+    M3uTemplate template;
+    String[] tokens;
+    int user;
+
+    @Setup
+    public void setup() {
+        List<IptvChannel> list = new ArrayList<>();
+        int id = 0;
+        for (M3uChannel c : M3uParser.parse(Fixtures.m3u(channels)).getChannels()) {
+            list.add(new IptvChannel(
+                    Integer.toString(id++, 36), c.getName(), c.getProp("tvg-logo"), c.getGroups(), c.getProp("tvg-id"), 7
+            ));
+        }
+
+        template = new M3uTemplate(list, "t", System.currentTimeMillis(), M3uTemplate.MIN_GZIP_CACHE_SIZE);
+
+        tokens = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            tokens[i] = "user" + i + "-0123456789abcdef0123456789abcdef";
+        }
+    }
+
+    @Benchmark
+    public byte[] render() {
+        return template.render(BASE_URL, tokens[user++ & (USERS - 1)]);
+    }
+
+    @Benchmark
+    public byte[] renderGzip() {
+        return template.renderGzip(BASE_URL, tokens[user++ & (USERS - 1)]);
+    }
+}
@@ -0,0 +1,100 @@
+package com.kvaster.iptv.bench;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import com.kvaster.iptv.xmltv.XmltvChannel;
+import com.kvaster.iptv.xmltv.XmltvDoc;
+import com.kvaster.iptv.xmltv.XmltvIcon;
+import com.kvaster.iptv.xmltv.XmltvProgramme;
+import com.kvaster.iptv.xmltv.XmltvText;
+
+/**
+ * Synthetic data shaped like real provider data. Generators are seeded, so same parameters give same data on each run.
+ */
+public class Fixtures {
+    private static final String[] WORDS = {
+            "news", "sport", "movie", "series", "live", "weather", "music", "kids", "documentary", "travel",
+            "Новости", "Спорт", "Фильм", "Сериал", "Погода"
+    };
+
+    private static String words(SplittableRandom rnd, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "" : " ").append(WORDS[rnd.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Iptv provider playlist with extended channel info.
+     */
+    public static String m3u(int channels) {
+        SplittableRandom rnd = new SplittableRandom(channels);
+
+        StringBuilder sb = new StringBuilder("#EXTM3U url-tvg=\"http://epg.example.com/epg.xml.gz\"\n");
+        for (int i = 0; i < channels; i++) {
+            sb.append("#EXTINF:-1 tvg-id=\"ch").append(i)
+                    .append("\" tvg-name=\"").append(words(rnd, 2)).append(' ').append(i)
+                    .append("\" tvg-logo=\"http://logo.example.com/").append(i).append(".png\"")
+                    .append(rnd.nextInt(4) == 0 ? " catchup=\"default\" catchup-days=\"7\"" : "")
+                    .append(" group-title=\"").append(WORDS[i % WORDS.length]).append("\",")
+                    .append(words(rnd, 2)).append(' ').append(i).append(" HD\n");
+            if (rnd.nextInt(8) == 0) {
+                sb.append("#EXTGRP:").append(WORDS[rnd.nextInt(WORDS.length)]).append('\n');
+            }
+            sb.append("http://stream.example.com/live/user/pass/").append(i).append(".m3u8\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Epg with given number of channels and programmes per channel.
+     */
+    public static XmltvDoc xmltv(int channels, int programmesPerChannel) {
+        SplittableRandom rnd = new SplittableRandom(channels * 31L + programmesPerChannel);
+        ZonedDateTime start = ZonedDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.ofHours(3));
+
+        List<XmltvChannel> chs = new ArrayList<>();
+        List<XmltvProgramme> programmes = new ArrayList<>();
+
+        for (int c = 0; c < channels; c++) {
+            String id = "ch" + c;
+            chs.add(new XmltvChannel(id, new XmltvText(words(rnd, 2) + ' ' + c, "ru"), new XmltvIcon("http://logo.example.com/" + c + ".png")));
+
+            ZonedDateTime t = start;
+            for (int p = 0; p < programmesPerChannel; p++) {
+                ZonedDateTime stop = t.plusMinutes(15 + rnd.nextInt(8) * 15);
+                programmes.add(new XmltvProgramme(id, t, stop)
+                        .setTitle(new XmltvText(words(rnd, 3), "ru"))
+                        .setDesc(new XmltvText(words(rnd, 25), "ru"))
+                        .setCategory(new XmltvText(WORDS[rnd.nextInt(WORDS.length)], "ru")));
+                t = stop;
+            }
+        }
+
+        return new XmltvDoc(chs, programmes);
+    }
+
+    /**
+     * Live hls media playlist. Consecutive sequence numbers give playlists sharing all segments but one,
+     * as consecutive reloads of live playlist do.
+     */
+    public static String hlsPlaylist(int segments, long sequence) {
+        StringBuilder sb = new StringBuilder()
+                .append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:3\n")
+                .append("#EXT-X-TARGETDURATION:6\n")
+                .append("#EXT-X-MEDIA-SEQUENCE:").append(sequence).append('\n');
+
+        for (long s = sequence; s < sequence + segments; s++) {
+            sb.append("#EXTINF:").append(s % 3 == 0 ? "5.005" : "6.006").append(",\n")
+                    .append("segment-").append(s).append(".ts?token=0123456789abcdef0123456789abcdef\n");
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,46 @@
+package com.kvaster.iptv.m3u;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import com.kvaster.iptv.bench.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class M3uParserBenchmark {
+    @Param({"1000", "50000"})
+    int channels;
+
+    String content;
+
+    @Setup
+    public void setup() {
+        content = Fixtures.m3u(channels);
+    }
+
+    @Benchmark
+    public M3uDoc parseString() {
+        return M3uParser.parse(content);
+    }
+
+    @Benchmark
+    public M3uDoc parseReader() throws IOException {
+        return M3uParser.parse(new StringReader(content), null);
+    }
+
+    @Benchmark
+    public M3uDoc parseReaderFiltered() throws IOException {
+        // most of channels are dropped by group filter
+        return M3uParser.parse(new StringReader(content), (groups) -> groups.contains("news"));
+    }
+}
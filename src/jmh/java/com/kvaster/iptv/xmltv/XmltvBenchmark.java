@@ -0,0 +1,62 @@
+package com.kvaster.iptv.xmltv;
+
+import java.util.concurrent.TimeUnit;
+
+import com.kvaster.iptv.bench.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+public class XmltvBenchmark {
+    @Param({"200"})
+    int channels;
+
+    @Param({"200"})
+    int programmes;
+
+    XmltvDoc doc;
+    // gzipped, as epg is downloaded and served
+    byte[] data;
+
+    @Setup
+    public void setup() {
+        doc = Fixtures.xmltv(channels, programmes);
+        data = XmltvUtils.writeXmltv(doc);
+    }
+
+    @Benchmark
+    public XmltvDoc parse() {
+        return XmltvUtils.parseXmltv(data);
+    }
+
+    @Benchmark
+    public int parseStreaming() {
+        // programmes are processed one by one and are not kept
+        int[] count = new int[1];
+        XmltvUtils.parseXmltv(data, new XmltvReader.Listener() {
+            @Override
+            public void onChannel(XmltvChannel channel) {
+                count[0]++;
+            }
+
+            @Override
+            public void onProgramme(XmltvProgramme programme) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    @Benchmark
+    public byte[] write() {
+        return XmltvUtils.writeXmltv(doc);
+    }
+}
@@ -0,0 +1,51 @@
+package com.kvaster.utils.digest;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DigestBenchmark {
+    // size of typical provider playlist
+    byte[] playlist;
+
+    Digest sha256;
+
+    @Setup
+    public void setup() {
+        playlist = new byte[4 * 1024 * 1024];
+        new SplittableRandom(1).nextBytes(playlist);
+
+        sha256 = Digest.sha256();
+    }
+
+    /**
+     * User token check - done on each stream request.
+     */
+    @Benchmark
+    public String md5Token() {
+        return Digest.md5("user-12345" + "salt");
+    }
+
+    /**
+     * Hls segment path id.
+     */
+    @Benchmark
+    public String sha256Url() {
+        return sha256.digest("http://stream.example.com/live/user/pass/segment-123456.ts?token=0123456789abcdef");
+    }
+
+    @Benchmark
+    public String sha256Playlist() {
+        return sha256.digest(playlist);
+    }
+}
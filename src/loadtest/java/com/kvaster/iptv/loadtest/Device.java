@@ -0,0 +1,251 @@
+package com.kvaster.iptv.loadtest;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.kvaster.iptv.m3u.M3uChannel;
+import com.kvaster.iptv.m3u.M3uDoc;
+import com.kvaster.iptv.m3u.M3uParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simulated hls player: loads playlist from proxy, picks random channel, reloads channel.m3u8 each target duration
+ * and downloads new segments one by one. Channel is switched periodically. Device is fully async,
+ * so thousands of devices are served by http client and scheduler threads.
+ */
+public class Device {
+    private static final Logger LOG = LoggerFactory.getLogger(Device.class);
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final long RETRY_DELAY_MS = 1000;
+    // segments loaded on channel start, as players do
+    private static final int START_SEGMENTS = 3;
+
+    private static final String TAG_TARGET_DURATION = "#EXT-X-TARGETDURATION:";
+
+    private final String name;
+    private final String proxyUrl;
+    private final long switchMs;
+
+    private final HttpClient client;
+    private final ScheduledExecutorService scheduler;
+    private final LoadStats stats;
+    private final SplittableRandom rnd;
+
+    // device is driven by single chain of requests and timers, fields are never accessed concurrently
+    private List<String> channels = List.of();
+    private String channelUrl;
+    private long channelStart;
+    private Set<String> seen = new HashSet<>();
+
+    private volatile boolean stopped;
+
+    public Device(int id, String proxyUrl, long switchMs, HttpClient client, ScheduledExecutorService scheduler, LoadStats stats) {
+        this.name = name(id);
+        this.proxyUrl = proxyUrl;
+        this.switchMs = switchMs;
+        this.client = client;
+        this.scheduler = scheduler;
+        this.stats = stats;
+        this.rnd = new SplittableRandom(id);
+    }
+
+    public static String name(int id) {
+        return "loadtest-" + id;
+    }
+
+    public void start() {
+        stats.devices.increment();
+        loadM3u();
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    private void schedule(Runnable r, long delayMs) {
+        if (!stopped) {
+            scheduler.schedule(r, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void loadM3u() {
+        getString(LoadStats.Type.M3U, proxyUrl + "/m3u/" + name).thenAccept((body) -> {
+            M3uDoc doc = body == null ? null : M3uParser.parse(body);
+            if (doc == null || doc.getChannels().isEmpty()) {
+                LOG.warn("[{}] no channels in playlist", name);
+                schedule(this::loadM3u, RETRY_DELAY_MS);
+                return;
+            }
+
+            channels = doc.getChannels().stream().map(M3uChannel::getUrl).toList();
+            switchChannel();
+        }).whenComplete(this::onFailure);
+    }
+
+    private void switchChannel() {
+        if (channelUrl != null) {
+            stats.channelSwitches.increment();
+        }
+
+        channelUrl = channels.get(rnd.nextInt(channels.size()));
+        channelStart = System.currentTimeMillis();
+        seen.clear();
+
+        reloadPlaylist();
+    }
+
+    private void reloadPlaylist() {
+        if (stopped) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        getString(LoadStats.Type.PLAYLIST, channelUrl).thenCompose((body) -> {
+            if (body == null) {
+                // provider or proxy failure, player usually retries and then switches channel
+                schedule(this::switchChannel, RETRY_DELAY_MS);
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+
+            long targetMs = TimeUnit.SECONDS.toMillis(10);
+            List<String> segments = new ArrayList<>();
+            for (String line : body.split("\n")) {
+                line = line.strip();
+                if (line.startsWith(TAG_TARGET_DURATION)) {
+                    targetMs = TimeUnit.SECONDS.toMillis(Long.parseLong(line.substring(TAG_TARGET_DURATION.length()).strip()));
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    segments.add(line);
+                }
+            }
+
+            List<String> toLoad = new ArrayList<>();
+            for (int i = seen.isEmpty() ? Math.max(0, segments.size() - START_SEGMENTS) : 0; i < segments.size(); i++) {
+                if (!seen.contains(segments.get(i))) {
+                    toLoad.add(segments.get(i));
+                }
+            }
+
+            // only segments from current playlist may appear in next one
+            seen = new HashSet<>(segments);
+
+            long durationMs = targetMs;
+            return loadSegments(toLoad, 0, durationMs).thenRun(() -> {
+                if (switchMs > 0 && System.currentTimeMillis() - channelStart >= switchMs) {
+                    switchChannel();
+                } else {
+                    schedule(this::reloadPlaylist, Math.max(0, start + durationMs - System.currentTimeMillis()));
+                }
+            });
+        }).whenComplete(this::onFailure);
+    }
+
+    private void onFailure(Void v, Throwable err) {
+        if (err != null) {
+            // device must not silently stop - start over
+            LOG.error("[{}] unexpected error", name, err);
+            channelUrl = null;
+            schedule(this::loadM3u, RETRY_DELAY_MS);
+        }
+    }
+
+    private CompletableFuture<Void> loadSegments(List<String> urls, int idx, long durationMs) {
+        if (stopped || idx >= urls.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return loadSegment(urls.get(idx), durationMs).thenCompose((v) -> loadSegments(urls, idx + 1, durationMs));
+    }
+
+    private CompletableFuture<Void> loadSegment(String url, long durationMs) {
+        long start = System.nanoTime();
+        long[] firstByte = new long[1];
+
+        HttpResponse.BodyHandler<Long> handler = (info) -> {
+            firstByte[0] = System.nanoTime();
+            return info.statusCode() == HttpURLConnection.HTTP_OK
+                    ? HttpResponse.BodySubscribers.fromSubscriber(new CountingSubscriber(), CountingSubscriber::getBytes)
+                    : HttpResponse.BodySubscribers.replacing(-1L);
+        };
+
+        return client.sendAsync(request(url), handler).handle((resp, err) -> {
+            long now = System.nanoTime();
+            if (err != null || resp.body() < 0) {
+                stats.error(LoadStats.Type.SEGMENT);
+            } else {
+                stats.success(LoadStats.Type.SEGMENT, firstByte[0] - start, now - start, resp.body());
+                if (TimeUnit.NANOSECONDS.toMillis(now - start) > durationMs) {
+                    stats.lateSegments.increment();
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return body or null in case of error
+     */
+    private CompletableFuture<String> getString(LoadStats.Type type, String url) {
+        long start = System.nanoTime();
+
+        return client.sendAsync(request(url), HttpResponse.BodyHandlers.ofString()).handle((resp, err) -> {
+            long time = System.nanoTime() - start;
+            if (err != null || resp.statusCode() != HttpURLConnection.HTTP_OK) {
+                LOG.debug("[{}] request failed: {}, {}", name, url, err == null ? resp.statusCode() : err.getMessage());
+                stats.error(type);
+                return null;
+            }
+
+            stats.success(type, time, time, resp.body().length());
+            return resp.body();
+        });
+    }
+
+    private static HttpRequest request(String url) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(TIMEOUT).GET().build();
+    }
+
+    private static class CountingSubscriber implements Flow.Subscriber<List<ByteBuffer>> {
+        private long bytes;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            for (ByteBuffer b : item) {
+                bytes += b.remaining();
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.kvaster.iptv.loadtest;
+
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.kvaster.iptv.xmltv.XmltvChannel;
+import com.kvaster.iptv.xmltv.XmltvDoc;
+import com.kvaster.iptv.xmltv.XmltvIcon;
+import com.kvaster.iptv.xmltv.XmltvProgramme;
+import com.kvaster.iptv.xmltv.XmltvText;
+import com.kvaster.iptv.xmltv.XmltvUtils;
+import io.undertow.Undertow;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iptv provider stub: playlist, live sliding hls playlists, ts segments of configured bitrate and xmltv.
+ * <p>
+ * All channels are live: media sequence is derived from wall clock, so each playlist reload after segment duration
+ * contains one new segment, as with real provider. All data is generated on start and is shared between requests.
+ * <p>
+ * Provider emulates several connections (playlists with same channels) - connection k is served with {@code /c<k>/}
+ * path prefix, connection 0 is served without prefix. Responses may be altered by {@link FaultInjector}.
+ */
+public class FakeProvider implements HttpHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(FakeProvider.class);
+
+    private static final String CONNECTION_PREFIX = "c";
+    private static final String LIVE = "live/";
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".ts";
+
+    private static final int TS_PACKET = 188;
+
+    private final String host;
+    private final int port;
+    private final int channels;
+    private final long segmentMillis;
+    private final int window;
+
+    private final long startMillis = System.currentTimeMillis();
+
+    // playlist of each connection
+    private final byte[][] m3u;
+    private final byte[] xmltv;
+    private final ByteBuffer segment;
+
+    private final FaultInjector faults;
+    private final Undertow undertow;
+
+    final LongAdder playlistRequests = new LongAdder();
+    final LongAdder hlsRequests = new LongAdder();
+    final LongAdder segmentRequests = new LongAdder();
+    final LongAdder xmltvRequests = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+
+    public FakeProvider(LoadTestConfig config, FaultInjector faults) {
+        this.faults = faults;
+        this.host = config.getProviderHost();
+        this.port = config.getProviderPort();
+        this.channels = config.getChannels();
+        this.segmentMillis = config.getSegmentSec() * 1000L;
+        this.window = config.getPlaylistWindow();
+
+        m3u = new byte[config.getConnections()][];
+        for (int c = 0; c < m3u.length; c++) {
+            m3u[c] = createM3u(c).getBytes(StandardCharsets.UTF_8);
+        }
+        xmltv = XmltvUtils.writeXmltv(createXmltv(config.getProgrammes()));
+        segment = createSegment(config.getBitrateKbps() * 1000L / 8 * config.getSegmentSec()).asReadOnlyBuffer();
+
+        undertow = Undertow.builder()
+                .addHttpListener(port, host)
+                .setHandler(this)
+                .build();
+    }
+
+    public void start() {
+        undertow.start();
+        faults.start();
+        LOG.info("provider started: {}, channels: {}, segment: {} kb", getM3uUrl(0), channels, segment.capacity() / 1024);
+    }
+
+    public void stop() {
+        undertow.stop();
+    }
+
+    public String getM3uUrl(int connection) {
+        return getBaseUrl(connection) + "/playlist.m3u";
+    }
+
+    public String getXmltvUrl() {
+        return getBaseUrl() + "/epg.xml.gz";
+    }
+
+    private String getBaseUrl() {
+        return "http://" + host + ':' + port;
+    }
+
+    private String getBaseUrl(int connection) {
+        return connection == 0 ? getBaseUrl() : getBaseUrl() + '/' + CONNECTION_PREFIX + connection;
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) {
+        String path = exchange.getRequestPath();
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        int connection = 0;
+        if (path.startsWith(CONNECTION_PREFIX)) {
+            int idx = path.indexOf('/');
+            connection = idx < 0 ? -1 : parseInt(path.substring(CONNECTION_PREFIX.length(), idx));
+            path = idx < 0 ? "" : path.substring(idx + 1);
+        }
+
+        if (connection < 0 || connection >= m3u.length) {
+            notFound(exchange);
+        } else if ("playlist.m3u".equals(path)) {
+            playlistRequests.increment();
+            send(exchange, FaultScenario.Target.PLAYLIST, connection, -1, "audio/mpegurl", ByteBuffer.wrap(m3u[connection]));
+        } else if ("epg.xml.gz".equals(path)) {
+            xmltvRequests.increment();
+            send(exchange, FaultScenario.Target.XMLTV, connection, -1, "application/octet-stream", ByteBuffer.wrap(xmltv));
+        } else if (path.startsWith(LIVE)) {
+            int idx = path.indexOf('/', LIVE.length());
+            int channel = idx < 0 ? -1 : parseInt(path.substring(LIVE.length(), idx));
+            String name = idx < 0 ? "" : path.substring(idx + 1);
+
+            if (channel < 0 || channel >= channels) {
+                notFound(exchange);
+            } else if ("index.m3u8".equals(name)) {
+                hlsRequests.increment();
+                ByteBuffer hls = ByteBuffer.wrap(createHls().getBytes(StandardCharsets.UTF_8));
+                send(exchange, FaultScenario.Target.HLS, connection, channel, "application/x-mpegUrl", hls);
+            } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                segmentRequests.increment();
+                send(exchange, FaultScenario.Target.SEGMENT, connection, channel, "video/mp2t", segment.duplicate());
+            } else {
+                notFound(exchange);
+            }
+        } else {
+            notFound(exchange);
+        }
+    }
+
+    private void send(
+            HttpServerExchange exchange, FaultScenario.Target target, int connection, int channel, String contentType, ByteBuffer data
+    ) {
+        bytesSent.add(data.remaining());
+        if (!faults.inject(target, connection, channel, exchange, contentType, data)) {
+            send(exchange, contentType, data);
+        }
+    }
+
+    static void send(HttpServerExchange exchange, String contentType, ByteBuffer data) {
+        writeHeaders(exchange, contentType, data.remaining());
+        exchange.getResponseSender().send(data);
+    }
+
+    static void writeHeaders(HttpServerExchange exchange, String contentType, long length) {
+        exchange.getResponseHeaders()
+                .put(Headers.CONTENT_TYPE, contentType)
+                .put(Headers.CONTENT_LENGTH, Long.toString(length));
+    }
+
+    private static int parseInt(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void notFound(HttpServerExchange exchange) {
+        LOG.warn("not found: {}", exchange.getRequestPath());
+        exchange.setStatusCode(HttpURLConnection.HTTP_NOT_FOUND);
+        exchange.endExchange();
+    }
+
+    private String createM3u(int connection) {
+        StringBuilder sb = new StringBuilder("#EXTM3U\n");
+        for (int i = 0; i < channels; i++) {
+            sb.append("#EXTINF:-1 tvg-id=\"ch").append(i)
+                    .append("\" tvg-logo=\"").append(getBaseUrl()).append("/logo/").append(i).append(".png\"")
+                    .append(" group-title=\"group ").append(i % 10).append("\",")
+                    .append("Channel ").append(i).append('\n')
+                    .append(getBaseUrl(connection)).append('/').append(LIVE).append(i).append("/index.m3u8\n");
+        }
+        return sb.toString();
+    }
+
+    private String createHls() {
+        long seq = (System.currentTimeMillis() - startMillis) / segmentMillis;
+        String duration = String.format("%d.000", segmentMillis / 1000);
+
+        StringBuilder sb = new StringBuilder()
+                .append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:3\n")
+                .append("#EXT-X-TARGETDURATION:").append(segmentMillis / 1000).append('\n')
+                .append("#EXT-X-MEDIA-SEQUENCE:").append(seq).append('\n');
+
+        for (long s = seq; s < seq + window; s++) {
+            sb.append("#EXTINF:").append(duration).append(",\n")
+                    .append(SEGMENT_PREFIX).append(s).append(SEGMENT_SUFFIX).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    private XmltvDoc createXmltv(int programmes) {
+        ZonedDateTime start = ZonedDateTime.now().truncatedTo(ChronoUnit.HOURS).minusHours(programmes / 2);
+
+        List<XmltvChannel> chs = new ArrayList<>();
+        List<XmltvProgramme> ps = new ArrayList<>();
+
+        for (int c = 0; c < channels; c++) {
+            String id = "ch" + c;
+            chs.add(new XmltvChannel(id, new XmltvText("Channel " + c, null), new XmltvIcon(getBaseUrl() + "/logo/" + c + ".png")));
+
+            ZonedDateTime t = start;
+            for (int p = 0; p < programmes; p++) {
+                ZonedDateTime stop = t.plusHours(1);
+                ps.add(new XmltvProgramme(id, t, stop)
+                        .setTitle(new XmltvText("Programme " + p, null))
+                        .setDesc(new XmltvText("Programme " + p + " on channel " + c, null)));
+                t = stop;
+            }
+        }
+
+        return new XmltvDoc(chs, ps);
+    }
+
+    private static ByteBuffer createSegment(long size) {
+        // mpeg-ts packets with sync byte, payload is not meaningful
+        int packets = (int) Math.max(1, size / TS_PACKET);
+        ByteBuffer b = ByteBuffer.allocateDirect(packets * TS_PACKET);
+        for (int i = 0; i < packets; i++) {
+            b.put((byte) 0x47);
+            b.put((byte) 0x01);
+            b.put((byte) 0x00);
+            b.put((byte) (0x10 | (i & 0x0f)));
+            for (int j = 4; j < TS_PACKET; j++) {
+                b.put((byte) 0xff);
+            }
+        }
+        return b.flip();
+    }
+}
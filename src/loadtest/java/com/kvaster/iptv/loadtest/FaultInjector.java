@@ -0,0 +1,173 @@
+package com.kvaster.iptv.loadtest;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.undertow.io.IoCallback;
+import io.undertow.io.Sender;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.SameThreadExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.IoUtils;
+
+/**
+ * Applies scenario faults to fake provider responses. Fault time is counted from provider start.
+ */
+public class FaultInjector {
+    private static final Logger LOG = LoggerFactory.getLogger(FaultInjector.class);
+
+    private static final long DRIP_INTERVAL_MS = 100;
+
+    private static class Active {
+        final FaultScenario.Fault fault;
+        // matching requests, used to pick requests according to probability
+        final AtomicLong matched = new AtomicLong();
+        final LongAdder injected = new LongAdder();
+
+        Active(FaultScenario.Fault fault) {
+            this.fault = fault;
+        }
+
+        boolean matches(FaultScenario.Target target, int connection, int channel, long elapsedMs) {
+            return fault.getTarget() == target
+                    && elapsedMs >= fault.getStartSec() * 1000 && elapsedMs < fault.getEndMillis()
+                    && (fault.getConnection() == null || fault.getConnection() == connection)
+                    && (fault.getChannels() == null || fault.getChannels().contains(channel));
+        }
+
+        boolean pick() {
+            long n = matched.incrementAndGet();
+            double p = fault.getProbability();
+            return (long) (n * p) > (long) ((n - 1) * p);
+        }
+    }
+
+    private final List<Active> faults;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile long startMillis = System.currentTimeMillis();
+
+    public FaultInjector(List<FaultScenario.Fault> faults, ScheduledExecutorService scheduler) {
+        this.faults = faults.stream().map(Active::new).toList();
+        this.scheduler = scheduler;
+    }
+
+    public void start() {
+        startMillis = System.currentTimeMillis();
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public List<FaultScenario.Fault> getFaults() {
+        return faults.stream().map((a) -> a.fault).toList();
+    }
+
+    /**
+     * @return provider requests answered with fault
+     */
+    public long getInjected() {
+        return faults.stream().mapToLong((a) -> a.injected.sum()).sum();
+    }
+
+    public void report(StringBuilder sb) {
+        faults.forEach((a) -> sb.append(String.format("fault: %s, requests: %d, injected: %d%n", a.fault, a.matched.get(), a.injected.sum())));
+    }
+
+    /**
+     * @param channel channel index, -1 for playlist and xmltv
+     * @return true in case response is handled by fault
+     */
+    public boolean inject(
+            FaultScenario.Target target, int connection, int channel, HttpServerExchange exchange, String contentType, ByteBuffer data
+    ) {
+        long elapsed = System.currentTimeMillis() - startMillis;
+
+        for (Active a : faults) {
+            if (a.matches(target, connection, channel, elapsed)) {
+                if (!a.pick()) {
+                    return false;
+                }
+
+                a.injected.increment();
+                apply(a.fault, exchange, contentType, data);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void apply(FaultScenario.Fault f, HttpServerExchange exchange, String contentType, ByteBuffer data) {
+        switch (f.getType()) {
+            case LATENCY -> exchange.dispatch(SameThreadExecutor.INSTANCE, () -> scheduler.schedule(
+                    () -> FakeProvider.send(exchange, contentType, data), f.getLatencyMs(), TimeUnit.MILLISECONDS
+            ));
+
+            case NOT_FOUND -> {
+                exchange.setStatusCode(HttpURLConnection.HTTP_NOT_FOUND);
+                exchange.endExchange();
+            }
+
+            case SLOW_DRIP -> {
+                FakeProvider.writeHeaders(exchange, contentType, data.remaining());
+                int chunk = (int) Math.max(1, f.getRateKbps() * 1000 / 8 * DRIP_INTERVAL_MS / 1000);
+                exchange.dispatch(SameThreadExecutor.INSTANCE, () -> drip(exchange, data, chunk));
+            }
+
+            case DISCONNECT -> {
+                // full length is announced, so client sees truncated body
+                FakeProvider.writeHeaders(exchange, contentType, data.remaining());
+                data.limit(data.position() + data.remaining() * f.getBodyPercent() / 100);
+                exchange.getResponseSender().send(data, new IoCallback() {
+                    @Override
+                    public void onComplete(HttpServerExchange exchange, Sender sender) {
+                        IoUtils.safeClose(exchange.getConnection());
+                    }
+
+                    @Override
+                    public void onException(HttpServerExchange exchange, Sender sender, IOException exception) {
+                        IoUtils.safeClose(exchange.getConnection());
+                    }
+                });
+            }
+
+            case TIMEOUT -> exchange.dispatch(SameThreadExecutor.INSTANCE, () -> scheduler.schedule(
+                    () -> IoUtils.safeClose(exchange.getConnection()), f.getLatencyMs(), TimeUnit.MILLISECONDS
+            ));
+        }
+    }
+
+    private void drip(HttpServerExchange exchange, ByteBuffer data, int chunk) {
+        ByteBuffer b = data.slice();
+        b.limit(Math.min(chunk, b.remaining()));
+        data.position(data.position() + b.remaining());
+
+        boolean last = !data.hasRemaining();
+        exchange.getResponseSender().send(b, new IoCallback() {
+            @Override
+            public void onComplete(HttpServerExchange exchange, Sender sender) {
+                if (last) {
+                    exchange.endExchange();
+                } else {
+                    scheduler.schedule(() -> drip(exchange, data, chunk), DRIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            @Override
+            public void onException(HttpServerExchange exchange, Sender sender, IOException exception) {
+                // client gave up
+                LOG.debug("slow drip aborted: {}", exception.getMessage());
+                IoUtils.safeClose(exchange.getConnection());
+            }
+        });
+    }
+}
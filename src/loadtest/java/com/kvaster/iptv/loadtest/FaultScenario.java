@@ -0,0 +1,209 @@
+package com.kvaster.iptv.loadtest;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scripted provider faults with proxy settings under test and expectations on recovery. Loaded from yaml,
+ * see {@code src/loadtest/scenarios}.
+ */
+public class FaultScenario {
+    public enum Target {
+        // provider playlist, loaded by proxy on start
+        PLAYLIST,
+        // channel hls playlist
+        HLS,
+        SEGMENT,
+        XMLTV
+    }
+
+    public enum Type {
+        // response is delayed by latency_ms
+        LATENCY,
+        // 404 response
+        NOT_FOUND,
+        // body is sent with rate_kbps
+        SLOW_DRIP,
+        // connection is closed after body_percent of body is sent
+        DISCONNECT,
+        // no response, connection is closed after latency_ms
+        TIMEOUT
+    }
+
+    public static class Fault {
+        private Target target;
+        private Type type;
+        private long startSec;
+        // 0 - till the end of test
+        private long durationSec;
+        // share of matching requests affected, requests are picked evenly - not randomly, so runs are repeatable
+        private double probability = 1;
+        // null - any connection or channel
+        private Integer connection;
+        private List<Integer> channels;
+
+        private long latencyMs = 60000;
+        private long rateKbps = 64;
+        private int bodyPercent = 50;
+
+        private Fault() {
+        }
+
+        public Target getTarget() {
+            return target;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public long getStartSec() {
+            return startSec;
+        }
+
+        public long getDurationSec() {
+            return durationSec;
+        }
+
+        public double getProbability() {
+            return probability;
+        }
+
+        public Integer getConnection() {
+            return connection;
+        }
+
+        public List<Integer> getChannels() {
+            return channels;
+        }
+
+        public long getLatencyMs() {
+            return latencyMs;
+        }
+
+        public long getRateKbps() {
+            return rateKbps;
+        }
+
+        public int getBodyPercent() {
+            return bodyPercent;
+        }
+
+        /**
+         * @return end of fault in millis from provider start, Long.MAX_VALUE if fault lasts till the end of test
+         */
+        public long getEndMillis() {
+            return durationSec == 0 ? Long.MAX_VALUE : (startSec + durationSec) * 1000;
+        }
+
+        @Override
+        public String toString() {
+            return type + " on " + target + " at " + startSec + "s for " + (durationSec == 0 ? "all" : durationSec + "s");
+        }
+    }
+
+    /**
+     * Proxy settings under test, null - loadtest default.
+     */
+    public static class Proxy {
+        private Long channelsTimeoutSec;
+        private Long channelsTotalTimeoutSec;
+        private Long channelsRetryDelayMs;
+        private Long infoTimeoutMs;
+        private Long infoTotalTimeoutMs;
+        private Long infoRetryDelayMs;
+        private Long channelFailedMs;
+        private Long streamStartTimeoutMs;
+        private Long streamReadTimeoutMs;
+
+        private Proxy() {
+        }
+
+        public Long getChannelsTimeoutSec() {
+            return channelsTimeoutSec;
+        }
+
+        public Long getChannelsTotalTimeoutSec() {
+            return channelsTotalTimeoutSec;
+        }
+
+        public Long getChannelsRetryDelayMs() {
+            return channelsRetryDelayMs;
+        }
+
+        public Long getInfoTimeoutMs() {
+            return infoTimeoutMs;
+        }
+
+        public Long getInfoTotalTimeoutMs() {
+            return infoTotalTimeoutMs;
+        }
+
+        public Long getInfoRetryDelayMs() {
+            return infoRetryDelayMs;
+        }
+
+        public Long getChannelFailedMs() {
+            return channelFailedMs;
+        }
+
+        public Long getStreamStartTimeoutMs() {
+            return streamStartTimeoutMs;
+        }
+
+        public Long getStreamReadTimeoutMs() {
+            return streamReadTimeoutMs;
+        }
+    }
+
+    /**
+     * Checked after test, null - not checked.
+     */
+    public static class Expect {
+        // proxy start, including playlist loading retries
+        private Long maxStartSec;
+        // time from fault end till last client error
+        private Long maxRecoverySec;
+        // provider requests answered with fault
+        private Long maxWastedRequests;
+        private Double maxErrorRate;
+
+        private Expect() {
+        }
+
+        public Long getMaxStartSec() {
+            return maxStartSec;
+        }
+
+        public Long getMaxRecoverySec() {
+            return maxRecoverySec;
+        }
+
+        public Long getMaxWastedRequests() {
+            return maxWastedRequests;
+        }
+
+        public Double getMaxErrorRate() {
+            return maxErrorRate;
+        }
+    }
+
+    private List<Fault> faults = Collections.emptyList();
+    private Proxy proxy = new Proxy();
+    private Expect expect = new Expect();
+
+    private FaultScenario() {
+    }
+
+    public List<Fault> getFaults() {
+        return faults;
+    }
+
+    public Proxy getProxy() {
+        return proxy;
+    }
+
+    public Expect getExpect() {
+        return expect;
+    }
+}
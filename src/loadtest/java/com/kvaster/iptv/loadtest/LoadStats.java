@@ -0,0 +1,200 @@
+package com.kvaster.iptv.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.kvaster.utils.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client side request statistics and jvm resource usage.
+ */
+public class LoadStats {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadStats.class);
+
+    private static final double MB = 1024 * 1024;
+
+    public enum Type {
+        M3U,
+        PLAYLIST,
+        SEGMENT
+    }
+
+    static class Requests {
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        // micros
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram firstByte = new LatencyHistogram();
+    }
+
+    private final Map<Type, Requests> requests = new EnumMap<>(Type.class);
+
+    final LongAdder devices = new LongAdder();
+    // segment downloaded slower than its duration - player will stall
+    final LongAdder lateSegments = new LongAdder();
+    final LongAdder channelSwitches = new LongAdder();
+
+    // seconds from base time with client errors, used to find recovery time after faults
+    private final long baseMillis;
+    private final NavigableSet<Long> errorSeconds = new ConcurrentSkipListSet<>();
+
+    private final long startNanos = System.nanoTime();
+    private final long startCpuNanos = cpuNanos();
+    private final long startGcCount = gcCount();
+    private final long startGcMillis = gcMillis();
+
+    // values from previous progress report
+    private long lastNanos = startNanos;
+    private long lastRequests;
+    private long lastBytes;
+
+    /**
+     * @param baseMillis start of error timeline
+     */
+    public LoadStats(long baseMillis) {
+        this.baseMillis = baseMillis;
+
+        for (Type t : Type.values()) {
+            requests.put(t, new Requests());
+        }
+
+        heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    public void success(Type type, long firstByteNanos, long totalNanos, long bytes) {
+        Requests r = requests.get(type);
+        r.count.increment();
+        r.bytes.add(bytes);
+        r.firstByte.record(TimeUnit.NANOSECONDS.toMicros(firstByteNanos));
+        r.latency.record(TimeUnit.NANOSECONDS.toMicros(totalNanos));
+    }
+
+    public void error(Type type) {
+        Requests r = requests.get(type);
+        r.count.increment();
+        r.errors.increment();
+        errorSeconds.add((System.currentTimeMillis() - baseMillis) / 1000);
+    }
+
+    /**
+     * @return last second from base time in range with client errors, -1 if there were no errors
+     */
+    public long getLastErrorSecond(long fromSec, long toSec) {
+        NavigableSet<Long> s = errorSeconds.subSet(fromSec, true, toSec, false);
+        return s.isEmpty() ? -1 : s.last();
+    }
+
+    public long getRequests() {
+        return requests.values().stream().mapToLong((r) -> r.count.sum()).sum();
+    }
+
+    public long getErrors() {
+        return requests.values().stream().mapToLong((r) -> r.errors.sum()).sum();
+    }
+
+    private long getBytes() {
+        return requests.values().stream().mapToLong((r) -> r.bytes.sum()).sum();
+    }
+
+    public void progress() {
+        long now = System.nanoTime();
+        long reqs = getRequests();
+        long bytes = getBytes();
+        double sec = (now - lastNanos) / 1e9;
+
+        LOG.info("devices: {}, req/s: {}, MB/s: {}, errors: {}, late segments: {}, heap: {} MB",
+                devices.sum(),
+                fmt((reqs - lastRequests) / sec),
+                fmt((bytes - lastBytes) / MB / sec),
+                getErrors(),
+                lateSegments.sum(),
+                fmt(heapUsed() / MB)
+        );
+
+        lastNanos = now;
+        lastRequests = reqs;
+        lastBytes = bytes;
+    }
+
+    public void report(FakeProvider provider, FaultInjector faults) {
+        double sec = (System.nanoTime() - startNanos) / 1e9;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        double cpu = (cpuNanos() - startCpuNanos) / 1e9;
+
+        StringBuilder sb = new StringBuilder("load test report\n");
+
+        sb.append(String.format("%-10s %10s %8s %10s %10s %10s %10s %10s %10s%n",
+                "type", "requests", "errors", "req/s", "MB/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        requests.forEach((type, r) -> {
+            LatencyHistogram.Snapshot s = r.latency.snapshot();
+            sb.append(String.format("%-10s %10d %8d %10s %10s %10s %10s %10s %10s%n",
+                    type, r.count.sum(), r.errors.sum(), fmt(r.count.sum() / sec), fmt(r.bytes.sum() / MB / sec),
+                    ms(s.percentile(0.5)), ms(s.percentile(0.9)), ms(s.percentile(0.99)), ms(s.getMax())));
+        });
+
+        LatencyHistogram.Snapshot fb = requests.get(Type.SEGMENT).firstByte.snapshot();
+        sb.append(String.format("segment first byte ms: p50 %s, p90 %s, p99 %s, max %s%n",
+                ms(fb.percentile(0.5)), ms(fb.percentile(0.9)), ms(fb.percentile(0.99)), ms(fb.getMax())));
+        sb.append(String.format("late segments: %d, channel switches: %d%n", lateSegments.sum(), channelSwitches.sum()));
+
+        if (provider != null) {
+            sb.append(String.format("provider: playlists %d, hls %d, segments %d, xmltv %d, MB sent %s%n",
+                    provider.playlistRequests.sum(), provider.hlsRequests.sum(), provider.segmentRequests.sum(),
+                    provider.xmltvRequests.sum(), fmt(provider.bytesSent.sum() / MB)));
+        }
+
+        faults.report(sb);
+
+        sb.append(String.format("cpu: %s sec, %s%% of %d cores%n", fmt(cpu), fmt(cpu / sec / cpus * 100), cpus));
+        sb.append(String.format("heap: used %s MB, peak %s MB, max %s MB%n",
+                fmt(heapUsed() / MB),
+                fmt(heapPools().stream().mapToLong((p) -> p.getPeakUsage().getUsed()).sum() / MB),
+                fmt(Runtime.getRuntime().maxMemory() / MB)));
+        sb.append(String.format("gc: %d collections, %d ms%n", gcCount() - startGcCount, gcMillis() - startGcMillis));
+
+        LOG.info("{}", sb);
+    }
+
+    private static String fmt(double v) {
+        return String.format("%.1f", v);
+    }
+
+    private static String ms(long micros) {
+        return fmt(micros / 1000.0);
+    }
+
+    private static long cpuNanos() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os.getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream().filter((p) -> p.getType() == MemoryType.HEAP).toList();
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+}
@@ -0,0 +1,259 @@
+package com.kvaster.iptv.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import com.kvaster.iptv.ConfigLoader;
+import com.kvaster.iptv.IptvProxyService;
+import com.kvaster.iptv.config.IptvConnectionConfig;
+import com.kvaster.iptv.config.IptvProxyConfig;
+import com.kvaster.iptv.config.IptvServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * End-to-end load test: fake provider, proxy and simulated devices in one jvm without network access.
+ * <p>
+ * With {@code loadtest.proxyUrl} set only provider and devices are started - proxy is run separately with provider
+ * playlist url in config, so cpu, heap and gc of proxy may be measured without load generator.
+ * <p>
+ * With {@code loadtest.scenario} provider responses are altered by scripted faults and proxy is started
+ * with scenario settings. Test fails in case scenario expectations are not met.
+ */
+public class LoadTest {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadTest.class);
+
+    public static void main(String[] args) {
+        LoadTestConfig config = LoadTestConfig.fromSystemProperties();
+        LOG.info("load test: {}", config);
+
+        boolean ok;
+        try {
+            ok = run(config);
+        } catch (Exception e) {
+            LOG.error("load test failed", e);
+            ok = false;
+        }
+
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean run(LoadTestConfig config) throws InterruptedException {
+        FaultScenario scenario = config.getScenario() == null ? null : ConfigLoader.loadConfig(new File(config.getScenario()), FaultScenario.class);
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+        FaultInjector faults = new FaultInjector(scenario == null ? List.of() : scenario.getFaults(), scheduler);
+        faults.getFaults().forEach((f) -> LOG.info("scenario fault: {}", f));
+
+        FakeProvider provider = new FakeProvider(config, faults);
+        provider.start();
+
+        Path cacheDir = null;
+        IptvProxyService proxy = null;
+        String proxyUrl = config.getProxyUrl();
+        long startMs = 0;
+
+        try {
+            if (proxyUrl == null) {
+                cacheDir = createTempDir();
+                proxy = new IptvProxyService(createProxyConfig(config, scenario, provider, cacheDir));
+
+                long start = System.currentTimeMillis();
+                proxy.startService();
+                startMs = System.currentTimeMillis() - start;
+                LOG.info("proxy started in {}ms", startMs);
+
+                proxyUrl = "http://127.0.0.1:" + config.getProxyPort();
+            }
+
+            LoadStats stats = new LoadStats(faults.getStartMillis());
+
+            long switchMs = TimeUnit.SECONDS.toMillis(config.getSwitchSec());
+            String url = proxyUrl;
+            List<Device> devices = IntStream.range(0, config.getDevices())
+                    .mapToObj((i) -> new Device(i, url, switchMs, client, scheduler, stats))
+                    .toList();
+
+            // devices are started evenly during ramp up
+            long rampUpMs = TimeUnit.SECONDS.toMillis(config.getRampUpSec());
+            for (int i = 0; i < devices.size(); i++) {
+                scheduler.schedule(devices.get(i)::start, rampUpMs * i / devices.size(), TimeUnit.MILLISECONDS);
+            }
+
+            long totalMs = rampUpMs + TimeUnit.SECONDS.toMillis(config.getDurationSec());
+            long reportMs = TimeUnit.SECONDS.toMillis(config.getReportSec());
+            long runStart = System.currentTimeMillis();
+            long elapsed;
+            while ((elapsed = System.currentTimeMillis() - runStart) < totalMs) {
+                Thread.sleep(Math.min(reportMs, totalMs - elapsed));
+                stats.progress();
+            }
+
+            devices.forEach(Device::stop);
+
+            stats.report(provider, faults);
+
+            return check(config, scenario, stats, faults, startMs);
+        } finally {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+
+            if (proxy != null) {
+                proxy.stopService();
+            }
+            provider.stop();
+
+            if (cacheDir != null) {
+                deleteDir(cacheDir);
+            }
+        }
+    }
+
+    private static boolean check(LoadTestConfig config, FaultScenario scenario, LoadStats stats, FaultInjector faults, long startMs) {
+        boolean ok = true;
+
+        FaultScenario.Expect expect = scenario == null ? null : scenario.getExpect();
+
+        long requests = stats.getRequests();
+        double errorRate = requests == 0 ? 1 : (double) stats.getErrors() / requests;
+        double maxErrorRate = expect == null || expect.getMaxErrorRate() == null ? config.getMaxErrorRate() : expect.getMaxErrorRate();
+        if (errorRate > maxErrorRate) {
+            LOG.error("error rate is too high: {}%", String.format("%.2f", errorRate * 100));
+            ok = false;
+        }
+
+        if (expect == null) {
+            return ok;
+        }
+
+        if (expect.getMaxStartSec() != null && startMs > expect.getMaxStartSec() * 1000) {
+            LOG.error("proxy start is too slow: {}ms", startMs);
+            ok = false;
+        }
+
+        if (expect.getMaxWastedRequests() != null && faults.getInjected() > expect.getMaxWastedRequests()) {
+            LOG.error("too many wasted upstream requests: {}", faults.getInjected());
+            ok = false;
+        }
+
+        // recovery - time from fault end till last client error before next fault
+        List<FaultScenario.Fault> fs = faults.getFaults();
+        for (FaultScenario.Fault f : fs) {
+            if (f.getEndMillis() == Long.MAX_VALUE) {
+                continue;
+            }
+
+            long endSec = f.getEndMillis() / 1000;
+            long nextSec = fs.stream().mapToLong(FaultScenario.Fault::getStartSec).filter((s) -> s >= endSec).min().orElse(Long.MAX_VALUE);
+            long last = stats.getLastErrorSecond(endSec, nextSec);
+            long recovery = last < 0 ? 0 : last + 1 - endSec;
+
+            LOG.info("recovery after {}: {} sec", f, recovery);
+
+            if (expect.getMaxRecoverySec() != null && recovery > expect.getMaxRecoverySec()) {
+                LOG.error("recovery is too slow after {}: {} sec", f, recovery);
+                ok = false;
+            }
+        }
+
+        return ok;
+    }
+
+    private static IptvProxyConfig createProxyConfig(LoadTestConfig config, FaultScenario scenario, FakeProvider provider, Path cacheDir) {
+        List<IptvConnectionConfig> connections = new ArrayList<>();
+        for (int i = 0; i < config.getConnections(); i++) {
+            connections.add(new IptvConnectionConfig.Builder()
+                    .url(provider.getM3uUrl(i))
+                    .maxConnections(config.getMaxConnections())
+                    .build());
+        }
+
+        IptvServerConfig.Builder server = IptvServerConfig.newBuilder()
+                .name("loadtest")
+                .connections(connections)
+                .xmltvUrl(provider.getXmltvUrl())
+                .infoTimeoutMs(5000)
+                .infoTotalTimeoutMs(10000)
+                .streamStartTimeoutMs(5000)
+                .streamReadTimeoutMs(5000);
+
+        Set<String> users = IntStream.range(0, config.getDevices()).mapToObj(Device::name).collect(Collectors.toSet());
+
+        IptvProxyConfig.Builder proxy = IptvProxyConfig.newBuilder()
+                .host("127.0.0.1")
+                .port(config.getProxyPort())
+                .tokenSalt("loadtest")
+                .allowAnonymous(false)
+                .users(users)
+                .segmentCacheSizeMb(config.getSegmentCacheMb())
+                .cacheDir(cacheDir.toString());
+
+        // settings under test
+        FaultScenario.Proxy p = scenario == null ? null : scenario.getProxy();
+        if (p != null) {
+            if (p.getChannelsTimeoutSec() != null) {
+                proxy.channelsTimeoutSec(p.getChannelsTimeoutSec());
+            }
+            if (p.getChannelsTotalTimeoutSec() != null) {
+                proxy.channelsTotalTimeoutSec(p.getChannelsTotalTimeoutSec());
+            }
+            if (p.getChannelsRetryDelayMs() != null) {
+                proxy.channelsRetryDelayMs(p.getChannelsRetryDelayMs());
+            }
+            if (p.getInfoTimeoutMs() != null) {
+                server.infoTimeoutMs(p.getInfoTimeoutMs());
+            }
+            if (p.getInfoTotalTimeoutMs() != null) {
+                server.infoTotalTimeoutMs(p.getInfoTotalTimeoutMs());
+            }
+            if (p.getInfoRetryDelayMs() != null) {
+                server.infoRetryDelayMs(p.getInfoRetryDelayMs());
+            }
+            if (p.getChannelFailedMs() != null) {
+                server.channelFailedMs(p.getChannelFailedMs());
+            }
+            if (p.getStreamStartTimeoutMs() != null) {
+                server.streamStartTimeoutMs(p.getStreamStartTimeoutMs());
+            }
+            if (p.getStreamReadTimeoutMs() != null) {
+                server.streamReadTimeoutMs(p.getStreamReadTimeoutMs());
+            }
+        }
+
+        return proxy.servers(List.of(server.build())).build();
+    }
+
+    private static Path createTempDir() {
+        try {
+            return Files.createTempDirectory("iptvproxy-loadtest");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteDir(Path dir) {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        } catch (IOException e) {
+            LOG.warn("error deleting cache dir: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.kvaster.iptv.loadtest;
+
+/**
+ * Load test settings, taken from system properties with {@value PREFIX} prefix, i.e. {@code -Dloadtest.devices=200}.
+ */
+public class LoadTestConfig {
+    private static final String PREFIX = "loadtest.";
+
+    // simulated devices
+    private int devices = 50;
+    private long rampUpSec = 10;
+    private long durationSec = 60;
+    // device switches channel after this time, 0 - never
+    private long switchSec = 30;
+    private long reportSec = 10;
+
+    // provider
+    private String providerHost = "127.0.0.1";
+    private int providerPort = 18081;
+    // provider playlists with same channels, each one is separate proxy connection
+    private int connections = 1;
+    private int channels = 200;
+    private int segmentSec = 2;
+    private int playlistWindow = 6;
+    private int bitrateKbps = 4000;
+    private int programmes = 48;
+
+    // yaml file with provider faults, see src/loadtest/scenarios
+    private String scenario;
+
+    // proxy, external proxy is used in case url is set
+    private String proxyUrl;
+    private int proxyPort = 18080;
+    private int maxConnections = 0;
+    private long segmentCacheMb = 0;
+
+    // test fails in case error rate is above this limit
+    private double maxErrorRate = 0.01;
+
+    private LoadTestConfig() {
+    }
+
+    public int getDevices() {
+        return devices;
+    }
+
+    public long getRampUpSec() {
+        return rampUpSec;
+    }
+
+    public long getDurationSec() {
+        return durationSec;
+    }
+
+    public long getSwitchSec() {
+        return switchSec;
+    }
+
+    public long getReportSec() {
+        return reportSec;
+    }
+
+    public String getProviderHost() {
+        return providerHost;
+    }
+
+    public int getProviderPort() {
+        return providerPort;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSegmentSec() {
+        return segmentSec;
+    }
+
+    public int getPlaylistWindow() {
+        return playlistWindow;
+    }
+
+    public int getBitrateKbps() {
+        return bitrateKbps;
+    }
+
+    public int getProgrammes() {
+        return programmes;
+    }
+
+    public String getScenario() {
+        return scenario;
+    }
+
+    public String getProxyUrl() {
+        return proxyUrl;
+    }
+
+    public int getProxyPort() {
+        return proxyPort;
+    }
+
+    /**
+     * @return max upstream connections per provider connection, by default each device may get own connection
+     */
+    public int getMaxConnections() {
+        return maxConnections > 0 ? maxConnections : devices;
+    }
+
+    public long getSegmentCacheMb() {
+        return segmentCacheMb;
+    }
+
+    public double getMaxErrorRate() {
+        return maxErrorRate;
+    }
+
+    public static LoadTestConfig fromSystemProperties() {
+        LoadTestConfig c = new LoadTestConfig();
+
+        c.devices = Integer.getInteger(PREFIX + "devices", c.devices);
+        c.rampUpSec = Long.getLong(PREFIX + "rampUpSec", c.rampUpSec);
+        c.durationSec = Long.getLong(PREFIX + "durationSec", c.durationSec);
+        c.switchSec = Long.getLong(PREFIX + "switchSec", c.switchSec);
+        c.reportSec = Long.getLong(PREFIX + "reportSec", c.reportSec);
+
+        c.providerHost = System.getProperty(PREFIX + "providerHost", c.providerHost);
+        c.providerPort = Integer.getInteger(PREFIX + "providerPort", c.providerPort);
+        c.connections = Integer.getInteger(PREFIX + "connections", c.connections);
+        c.channels = Integer.getInteger(PREFIX + "channels", c.channels);
+        c.segmentSec = Integer.getInteger(PREFIX + "segmentSec", c.segmentSec);
+        c.playlistWindow = Integer.getInteger(PREFIX + "playlistWindow", c.playlistWindow);
+        c.bitrateKbps = Integer.getInteger(PREFIX + "bitrateKbps", c.bitrateKbps);
+        c.programmes = Integer.getInteger(PREFIX + "programmes", c.programmes);
+
+        c.scenario = System.getProperty(PREFIX + "scenario", c.scenario);
+
+        c.proxyUrl = System.getProperty(PREFIX + "proxyUrl", c.proxyUrl);
+        c.proxyPort = Integer.getInteger(PREFIX + "proxyPort", c.proxyPort);
+        c.maxConnections = Integer.getInteger(PREFIX + "maxConnections", c.maxConnections);
+        c.segmentCacheMb = Long.getLong(PREFIX + "segmentCacheMb", c.segmentCacheMb);
+
+        c.maxErrorRate = Double.parseDouble(System.getProperty(PREFIX + "maxErrorRate", String.valueOf(c.maxErrorRate)));
+
+        return c;
+    }
+
+    @Override
+    public String toString() {
+        return "devices=" + devices + ", rampUpSec=" + rampUpSec + ", durationSec=" + durationSec + ", switchSec=" + switchSec +
+                ", connections=" + connections + ", channels=" + channels + ", segmentSec=" + segmentSec + ", bitrateKbps=" + bitrateKbps +
+                ", proxyUrl=" + (proxyUrl == null ? "embedded" : proxyUrl) + ", maxConnections=" + getMaxConnections() +
+                ", segmentCacheMb=" + segmentCacheMb +
+                ", scenario=" + scenario;
+    }
+}
@@ -1,54 +1,197 @@
 package com.kvaster.iptv;
 
-import java.net.URI;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
+import com.kvaster.utils.timer.HashedWheelTimer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class AsyncLoader<T> {
     private static final Logger LOG = LoggerFactory.getLogger(AsyncLoader.class);
 
-    public static AsyncLoader<String> stringLoader(long timeoutSec, long totalTimeoutSec, long retryDelayMs, ScheduledExecutorService scheduler) {
-        return new AsyncLoader<>(timeoutSec, totalTimeoutSec, retryDelayMs, scheduler, HttpResponse.BodyHandlers::ofString);
+    /**
+     * Result of conditional load of stream loader in case resource was not modified.
+     */
+    public static final InputStream NOT_MODIFIED = new ByteArrayInputStream(new byte[0]);
+
+    /**
+     * Loader completes as soon as response headers are received, body must be read and closed by caller.
+     * Timeout is used as read timeout for body.
+     */
+    public static AsyncLoader<InputStream> streamLoader(long timeoutSec, long totalTimeoutSec, long retryDelayMs, HashedWheelTimer timer, IptvMetrics.Loader metrics) {
+        long readTimeoutMs = TimeUnit.SECONDS.toMillis(timeoutSec);
+        return new AsyncLoader<>(
+                timeoutSec, totalTimeoutSec, retryDelayMs, timer, metrics, () -> (info) -> new BodyInputStream(readTimeoutMs), NOT_MODIFIED
+        );
     }
 
-    public static AsyncLoader<byte[]> bytesLoader(long timeoutSec, long totalTimeoutSec, long retryDelayMs, ScheduledExecutorService scheduler) {
-        return new AsyncLoader<>(timeoutSec, totalTimeoutSec, retryDelayMs, scheduler, HttpResponse.BodyHandlers::ofByteArray);
+    /**
+     * Reads loaded body. Body is null in case of load failure.
+     */
+    @FunctionalInterface
+    public interface BodyReader<T, R> {
+        R read(T body) throws IOException;
+    }
+
+    private static class Validators {
+        final String etag;
+        final String lastModified;
+
+        Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
     }
 
     private final long timeoutSec;
     private final long totalTimeoutSec;
     private final long retryDelayMs;
-    private final ScheduledExecutorService scheduler;
+    private final HashedWheelTimer timer;
+    private final IptvMetrics.Loader metrics;
     private final Supplier<HttpResponse.BodyHandler<T>> handlerSupplier;
 
+    private final T notModified;
+    // validators of last successful response per key
+    private final Map<String, Validators> validators = new ConcurrentHashMap<>();
+
     public AsyncLoader(
-            long timeoutSec, long totalTimeoutSec, long retryDelayMs, ScheduledExecutorService scheduler,
+            long timeoutSec, long totalTimeoutSec, long retryDelayMs, HashedWheelTimer timer, IptvMetrics.Loader metrics,
             Supplier<HttpResponse.BodyHandler<T>> handlerSupplier
+    ) {
+        this(timeoutSec, totalTimeoutSec, retryDelayMs, timer, metrics, handlerSupplier, null);
+    }
+
+    /**
+     * @param notModified result for conditional loads in case resource was not modified, null if conditional loads are not supported
+     */
+    public AsyncLoader(
+            long timeoutSec, long totalTimeoutSec, long retryDelayMs, HashedWheelTimer timer, IptvMetrics.Loader metrics,
+            Supplier<HttpResponse.BodyHandler<T>> handlerSupplier, T notModified
     ) {
         this.timeoutSec = timeoutSec;
         this.totalTimeoutSec = totalTimeoutSec;
         this.retryDelayMs = retryDelayMs;
-        this.scheduler = scheduler;
+        this.timer = timer;
+        this.metrics = metrics;
         this.handlerSupplier = handlerSupplier;
+        this.notModified = notModified;
     }
 
-    public CompletableFuture<T> loadAsync(String msg, String url, HttpClient httpClient) {
-        return loadAsync(msg, HttpRequest.newBuilder().uri(URI.create(url)).build(), httpClient);
+    public boolean isNotModified(T result) {
+        return notModified != null && result == notModified;
+    }
+
+    /**
+     * Forgets validators, so next conditional load will fetch resource. Must be called in case loaded data
+     * was not used by caller - otherwise next load may report not modified resource.
+     */
+    public void invalidate(String key) {
+        validators.remove(key);
     }
 
     public CompletableFuture<T> loadAsync(String msg, HttpRequest req, HttpClient httpClient) {
+        return loadAsync(msg, req, httpClient, null, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(totalTimeoutSec));
+    }
+
+    /**
+     * Conditional load: validators (ETag / Last-Modified) of last successful response are remembered per key
+     * and sent with next request. Future is completed with not modified result in case server replied with 304.
+     *
+     * @param key validators key, null for unconditional load
+     */
+    public CompletableFuture<T> loadIfModified(String key, String msg, HttpRequest req, HttpClient httpClient) {
+        if (notModified == null) {
+            throw new IllegalStateException("conditional loads are not supported");
+        }
+
+        return loadAsync(msg, req, httpClient, key, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(totalTimeoutSec));
+    }
+
+    /**
+     * Conditional load with body reading. Loader completes as soon as response headers are received, so body read
+     * failures (timeout or connection reset in the middle of body) are retried here within same total timeout.
+     *
+     * @param executor executor for blocking body reads
+     * @return reader result or null in case body could not be loaded
+     */
+    public <R> CompletableFuture<R> loadIfModified(
+            String key, String msg, HttpRequest req, HttpClient httpClient, BodyReader<T, R> reader, Executor executor
+    ) {
+        if (notModified == null) {
+            throw new IllegalStateException("conditional loads are not supported");
+        }
+
+        var future = new CompletableFuture<R>();
+        read(key, msg, req, httpClient, reader, executor, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(totalTimeoutSec), future);
+        return future;
+    }
+
+    private <R> void read(
+            String key, String msg, HttpRequest req, HttpClient httpClient, BodyReader<T, R> reader, Executor executor,
+            long expireTime, CompletableFuture<R> future
+    ) {
+        loadAsync(msg, req, httpClient, key, expireTime).whenCompleteAsync((body, err) -> {
+            if (err != null) {
+                future.completeExceptionally(err);
+                return;
+            }
+
+            try {
+                future.complete(reader.read(body));
+            } catch (IOException e) {
+                // validators were taken from response with broken body
+                invalidate(key);
+
+                if (System.currentTimeMillis() < expireTime) {
+                    LOG.warn("error reading {}: {}, will retry", msg, e.getMessage());
+                    metrics.retries.inc();
+
+                    timer.schedule(
+                            () -> read(key, msg, req, httpClient, reader, executor, expireTime, future),
+                            retryDelayMs,
+                            TimeUnit.MILLISECONDS
+                    );
+                } else {
+                    LOG.error("error reading {}: {}", msg, e.getMessage());
+                    metrics.failures.inc();
+                    future.complete(null);
+                }
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, executor);
+    }
+
+    private CompletableFuture<T> loadAsync(String msg, HttpRequest req, HttpClient httpClient, String key, long expireTime) {
         final String rid = RequestCounter.next();
 
+        Validators v = key == null ? null : validators.get(key);
+        if (v != null) {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(req, (n, val) -> true);
+            if (v.etag != null) {
+                builder.header("If-None-Match", v.etag);
+            }
+            if (v.lastModified != null) {
+                builder.header("If-Modified-Since", v.lastModified);
+            }
+            req = builder.build();
+        }
+
         var future = new CompletableFuture<T>();
-        loadAsync(msg, req, 0, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(totalTimeoutSec), rid, future, httpClient);
+        loadAsync(msg, req, 0, expireTime, rid, future, httpClient, key);
         return future;
     }
 
@@ -59,7 +202,8 @@ public class AsyncLoader<T> {
             long expireTime,
             String rid,
             CompletableFuture<T> future,
-            HttpClient httpClient
+            HttpClient httpClient,
+            String key
     ) {
         LOG.info("{}loading {}, retry: {}, url: {}", rid, msg, retryNo, req.uri());
 
@@ -67,22 +211,53 @@ public class AsyncLoader<T> {
         httpClient.sendAsync(req, handlerSupplier.get())
                 .orTimeout(timeoutSec, TimeUnit.SECONDS)
                 .whenComplete((resp, err) -> {
-                    if (HttpUtils.isOk(resp, err, rid, startNanos)) {
+                    metrics.duration.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+
+                    if (key != null && resp != null && resp.statusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        LOG.info("{}not modified ({}ms)", rid, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                        closeBody(resp);
+                        future.complete(notModified);
+                    } else if (HttpUtils.isOk(resp, err, rid, startNanos)) {
+                        if (key != null) {
+                            String etag = resp.headers().firstValue("ETag").orElse(null);
+                            String lastModified = resp.headers().firstValue("Last-Modified").orElse(null);
+                            if (etag == null && lastModified == null) {
+                                validators.remove(key);
+                            } else {
+                                validators.put(key, new Validators(etag, lastModified));
+                            }
+                        }
+
                         future.complete(resp.body());
                     } else {
+                        closeBody(resp);
+
                         if (System.currentTimeMillis() < expireTime) {
                             LOG.warn("{}will retry", rid);
+                            metrics.retries.inc();
 
-                            scheduler.schedule(
-                                    () -> loadAsync(msg, req, retryNo + 1, expireTime, rid, future, httpClient),
+                            timer.schedule(
+                                    () -> loadAsync(msg, req, retryNo + 1, expireTime, rid, future, httpClient, key),
                                     retryDelayMs,
                                     TimeUnit.MILLISECONDS
                             );
                         } else {
                             LOG.error("{}failed", rid);
+                            metrics.failures.inc();
                             future.complete(null);
                         }
                     }
                 });
     }
+
+    private static void closeBody(HttpResponse<?> resp) {
+        if (resp != null && resp.body() instanceof Closeable c) {
+            // release connection
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
 }
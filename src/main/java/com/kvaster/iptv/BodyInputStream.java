@@ -0,0 +1,164 @@
+package com.kvaster.iptv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Http response body as blocking input stream. Only few chunks are requested from upstream ahead of reader,
+ * so download is going at the same speed as body is consumed. Read fails in case no data arrives within
+ * read timeout.
+ */
+public class BodyInputStream extends InputStream implements HttpResponse.BodySubscriber<InputStream> {
+    private static final int PREFETCH = 16;
+
+    // unique instance - empty lists may be delivered as data and List.of() is shared singleton
+    private static final List<ByteBuffer> EOF = new ArrayList<>(0);
+
+    private final long readTimeoutMs;
+
+    private final BlockingQueue<List<ByteBuffer>> queue = new LinkedBlockingQueue<>();
+    private final CompletableFuture<InputStream> body = CompletableFuture.completedFuture(this);
+
+    private volatile Flow.Subscription subscription;
+    private volatile Throwable error;
+    private volatile boolean closed;
+
+    // accessed only by reader
+    private Iterator<ByteBuffer> chunk;
+    private ByteBuffer current;
+    private boolean eof;
+
+    public BodyInputStream(long readTimeoutMs) {
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    @Override
+    public CompletionStage<InputStream> getBody() {
+        return body;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+
+        if (closed) {
+            subscription.cancel();
+        } else {
+            subscription.request(PREFETCH);
+        }
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> item) {
+        queue.offer(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        queue.offer(EOF);
+    }
+
+    @Override
+    public void onComplete() {
+        queue.offer(EOF);
+    }
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer b = buffer();
+        return b == null ? -1 : (b.get() & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        ByteBuffer buf = buffer();
+        if (buf == null) {
+            return -1;
+        }
+
+        len = Math.min(len, buf.remaining());
+        buf.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+
+            Flow.Subscription s = subscription;
+            if (s != null) {
+                s.cancel();
+            }
+
+            queue.clear();
+        }
+    }
+
+    private ByteBuffer buffer() throws IOException {
+        while (current == null || !current.hasRemaining()) {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+
+            if (eof) {
+                return null;
+            }
+
+            if (chunk != null && chunk.hasNext()) {
+                current = chunk.next();
+                continue;
+            }
+
+            List<ByteBuffer> next;
+            try {
+                next = queue.poll(readTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                close();
+                throw new InterruptedIOException();
+            }
+
+            if (next == null) {
+                close();
+                throw new SocketTimeoutException("read timeout");
+            }
+
+            if (next == EOF) {
+                eof = true;
+
+                Throwable err = error;
+                if (err != null) {
+                    throw err instanceof IOException ? (IOException) err : new IOException(err);
+                }
+            } else {
+                chunk = next.iterator();
+                subscription.request(1);
+            }
+        }
+
+        return current;
+    }
+}
@@ -1,6 +1,7 @@
 package com.kvaster.iptv;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.CompletableFuture;
@@ -13,17 +14,9 @@ public class FileLoader {
 
     private static final String FILE_SCHEME = "file://";
 
-    public static CompletableFuture<String> tryLoadString(String url) {
+    public static CompletableFuture<InputStream> tryOpenStream(String url) {
         try {
-            return complete(loadString(url));
-        } catch (Exception e) {
-            return completeWithError(e);
-        }
-    }
-
-    public static CompletableFuture<byte[]> tryLoadBytes(String url) {
-        try {
-            return complete(loadBytes(url));
+            return complete(openStream(url));
         } catch (Exception e) {
             return completeWithError(e);
         }
@@ -45,17 +38,9 @@ public class FileLoader {
         return future;
     }
 
-    private static String loadString(String url) throws IOException {
-        byte[] data = loadBytes(url);
-        if (data == null) {
-            return null;
-        }
-        return new String(data);
-    }
-
-    private static byte[] loadBytes(String url) throws IOException {
+    private static InputStream openStream(String url) throws IOException {
         if (url.startsWith(FILE_SCHEME)) {
-            return Files.readAllBytes(Path.of(url.substring(FILE_SCHEME.length())));
+            return Files.newInputStream(Path.of(url.substring(FILE_SCHEME.length())));
         } else {
             return null;
         }
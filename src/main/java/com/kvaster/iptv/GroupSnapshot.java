@@ -0,0 +1,201 @@
+package com.kvaster.iptv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.kvaster.iptv.xmltv.XmltvSpool;
+
+/**
+ * Last published state of server group in compact binary form. Snapshot is used to serve channels and epg
+ * right after start while channels are updated in background.
+ */
+public class GroupSnapshot {
+    private static final int MAGIC = 0x49505453;
+    private static final int VERSION = 1;
+
+    public static class Channel {
+        public String id;
+        public String name;
+        public String logo;
+        public List<String> groups = new ArrayList<>();
+        public String xmltvId;
+        public int catchupDays;
+        public List<ServerChannel> serverChannels = new ArrayList<>();
+    }
+
+    public static class ServerChannel {
+        // index of server in group
+        public int server;
+        public String url;
+
+        public ServerChannel(int server, String url) {
+            this.server = server;
+            this.url = url;
+        }
+    }
+
+    // snapshot is valid only for same group configuration
+    public String fingerprint;
+
+    public Map<String, String> channelIds = new HashMap<>();
+    public Map<String, String> xmltvIds = new HashMap<>();
+    public List<String> xmltvChannels = new ArrayList<>();
+    public List<Channel> channels = new ArrayList<>();
+
+    public XmltvSpool spool;
+
+    /**
+     * Writes snapshot to temporary file first, so previous snapshot is replaced only with complete one.
+     */
+    public void write(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, fingerprint);
+
+                writeMap(out, channelIds);
+                writeMap(out, xmltvIds);
+
+                out.writeInt(xmltvChannels.size());
+                for (String id : xmltvChannels) {
+                    writeString(out, id);
+                }
+
+                out.writeInt(channels.size());
+                for (Channel ch : channels) {
+                    writeString(out, ch.id);
+                    writeString(out, ch.name);
+                    writeString(out, ch.logo);
+                    out.writeInt(ch.groups.size());
+                    for (String g : ch.groups) {
+                        writeString(out, g);
+                    }
+                    writeString(out, ch.xmltvId);
+                    out.writeInt(ch.catchupDays);
+                    out.writeInt(ch.serverChannels.size());
+                    for (ServerChannel sc : ch.serverChannels) {
+                        out.writeInt(sc.server);
+                        writeString(out, sc.url);
+                    }
+                }
+
+                // programmes are copied as is, they are already compressed
+                out.writeInt(spool == null ? -1 : spool.size());
+                if (spool != null) {
+                    out.flush();
+                    spool.copyTo(out);
+                }
+            }
+
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return snapshot or null in case there is no snapshot for given fingerprint
+     */
+    public static GroupSnapshot read(Path file, String fingerprint, Path spoolDir) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            GroupSnapshot s = new GroupSnapshot();
+
+            s.fingerprint = readString(in);
+            if (!fingerprint.equals(s.fingerprint)) {
+                return null;
+            }
+
+            readMap(in, s.channelIds);
+            readMap(in, s.xmltvIds);
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                s.xmltvChannels.add(readString(in));
+            }
+
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Channel ch = new Channel();
+                ch.id = readString(in);
+                ch.name = readString(in);
+                ch.logo = readString(in);
+                int groups = in.readInt();
+                for (int j = 0; j < groups; j++) {
+                    ch.groups.add(readString(in));
+                }
+                ch.xmltvId = readString(in);
+                ch.catchupDays = in.readInt();
+                int scs = in.readInt();
+                for (int j = 0; j < scs; j++) {
+                    ch.serverChannels.add(new ServerChannel(in.readInt(), readString(in)));
+                }
+                s.channels.add(ch);
+            }
+
+            int programmes = in.readInt();
+            if (programmes >= 0) {
+                s.spool = XmltvSpool.restore(spoolDir, in, programmes);
+            }
+
+            return s;
+        }
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+    }
+
+    private static void readMap(DataInputStream in, Map<String, String> map) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            map.put(readString(in), readString(in));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] data = str.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+
+        byte[] data = new byte[len];
+        in.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,217 @@
+package com.kvaster.iptv;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.kvaster.utils.digest.Digest;
+
+/**
+ * Rewrites upstream hls media playlists into streams served by proxy. Playlist is scanned line by line
+ * without splitting, regular expressions or URI parsing.
+ * <p>
+ * Rewriter belongs to one playlist poller and keeps segments of previous reload - consecutive live playlists
+ * share most of their segments, so such segments are reused as is and their path ids are not recalculated.
+ * Rewriter is not thread safe, playlist reloads of one poller are sequential.
+ */
+class HlsRewriter {
+    private static final String TAG_EXTINF = "#EXTINF:";
+    private static final String TAG_TARGET_DURATION = "#EXT-X-TARGETDURATION:";
+    private static final String TAG_ENDLIST = "#EXT-X-ENDLIST";
+
+    private final Digest digest = Digest.sha256();
+    private final StringBuilder header = new StringBuilder();
+
+    // segments by playlist line: from previous reload and from current one
+    private String prevUrl;
+    private Map<String, IptvServerChannel.Stream> prevSegments = new HashMap<>();
+    private Map<String, IptvServerChannel.Stream> segments = new HashMap<>();
+
+    /**
+     * @param url playlist url, relative segment urls are resolved against it
+     * @return url of nested playlist in case playlist references other playlist instead of segments, null otherwise
+     */
+    String rewrite(String url, String body, IptvServerChannel.Streams streams) {
+        header.setLength(0);
+        segments.clear();
+
+        if (!url.equals(prevUrl)) {
+            // relative segment urls are resolved differently
+            prevSegments.clear();
+            prevUrl = url;
+        }
+
+        long durationMillis = 0;
+
+        int len = body.length();
+        int pos = 0;
+        while (pos < len) {
+            int end = body.indexOf('\n', pos);
+            if (end < 0) {
+                end = len;
+            }
+
+            int start = pos;
+            pos = end + 1;
+
+            // trim
+            while (start < end && body.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && body.charAt(end - 1) <= ' ') {
+                end--;
+            }
+
+            if (start == end) {
+                continue;
+            }
+
+            if (body.charAt(start) == '#') {
+                if (body.startsWith(TAG_EXTINF, start)) {
+                    int vs = start + TAG_EXTINF.length();
+                    int ve = body.indexOf(',', vs);
+                    long d = parseMillis(body, vs, ve < 0 || ve > end ? end : ve);
+                    if (d >= 0) {
+                        durationMillis = d;
+                        streams.maxDuration = Math.max(streams.maxDuration, durationMillis);
+                    }
+                } else if (body.startsWith(TAG_TARGET_DURATION, start)) {
+                    long d = parseMillis(body, start + TAG_TARGET_DURATION.length(), end);
+                    if (d >= 0) {
+                        streams.maxDuration = Math.max(streams.maxDuration, d);
+                    }
+                } else if (body.startsWith(TAG_ENDLIST, start)) {
+                    streams.isEnded = true;
+                }
+
+                header.append(body, start, end).append('\n');
+            } else {
+                String line = body.substring(start, end);
+
+                IptvServerChannel.Stream s = prevSegments.get(line);
+                if (s == null || s.durationMillis != durationMillis || !s.header.contentEquals(header)) {
+                    String segmentUrl = resolve(url, line);
+
+                    // we need to redownload m3u8 if m3u8 is found instead of .ts streams
+                    if (isPlaylist(segmentUrl)) {
+                        segments.clear();
+                        return segmentUrl;
+                    }
+
+                    // path id depends only on segment url
+                    String path = s == null ? digest.digest(segmentUrl) + ".ts" : s.path;
+                    s = new IptvServerChannel.Stream(path, segmentUrl, header.toString(), durationMillis);
+                }
+
+                segments.put(line, s);
+                streams.streamMap.put(s.path, s);
+                streams.streams.add(s);
+
+                header.setLength(0);
+                durationMillis = 0;
+            }
+        }
+
+        // current segments are previous ones for next reload
+        Map<String, IptvServerChannel.Stream> m = prevSegments;
+        prevSegments = segments;
+        segments = m;
+        segments.clear();
+
+        return null;
+    }
+
+    /**
+     * Parses non negative decimal number of seconds (i.e. 10 or 5.005) into milliseconds, extra fraction digits are truncated.
+     *
+     * @return duration in milliseconds or -1 in case value is malformed
+     */
+    static long parseMillis(CharSequence s, int start, int end) {
+        while (start < end && s.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && s.charAt(end - 1) == ' ') {
+            end--;
+        }
+
+        long seconds = 0;
+        int digits = 0;
+        int pos = start;
+
+        for (; pos < end && isDigit(s.charAt(pos)); pos++, digits++) {
+            if (seconds > Integer.MAX_VALUE) {
+                return -1;
+            }
+            seconds = seconds * 10 + (s.charAt(pos) - '0');
+        }
+
+        long millis = 0;
+        if (pos < end && s.charAt(pos) == '.') {
+            pos++;
+            for (int scale = 100; pos < end && isDigit(s.charAt(pos)); pos++, digits++, scale /= 10) {
+                millis += (s.charAt(pos) - '0') * scale;
+            }
+        }
+
+        if (digits == 0 || pos != end) {
+            return -1;
+        }
+
+        return seconds * 1000 + millis;
+    }
+
+    /**
+     * Resolves segment reference against playlist url.
+     */
+    static String resolve(String base, String ref) {
+        if (ref.startsWith("http://") || ref.startsWith("https://")) {
+            return ref;
+        }
+
+        int schemeEnd = base.indexOf("://");
+        if (schemeEnd < 0) {
+            return ref;
+        }
+
+        if (ref.startsWith("//")) {
+            // network path reference
+            return base.substring(0, schemeEnd + 1) + ref;
+        }
+
+        int authorityEnd = indexOfAny(base, "/?#", schemeEnd + 3);
+
+        if (ref.startsWith("/")) {
+            return base.substring(0, authorityEnd) + ref;
+        }
+
+        // relative to playlist directory, query of playlist url is not a part of path
+        int pathEnd = indexOfAny(base, "?#", authorityEnd);
+        int dir = base.lastIndexOf('/', pathEnd - 1);
+        if (dir < authorityEnd) {
+            return base.substring(0, authorityEnd) + '/' + ref;
+        }
+
+        return base.substring(0, dir + 1) + ref;
+    }
+
+    /**
+     * @return true in case url path has playlist extension
+     */
+    static boolean isPlaylist(String url) {
+        int schemeEnd = url.indexOf("://");
+        int pathEnd = indexOfAny(url, "?#", schemeEnd < 0 ? 0 : schemeEnd + 3);
+        return url.startsWith(".m3u8", pathEnd - 5) || url.startsWith(".m3u", pathEnd - 4);
+    }
+
+    private static int indexOfAny(String str, String chars, int from) {
+        for (int i = from; i < str.length(); i++) {
+            if (chars.indexOf(str.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return str.length();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,151 @@
+package com.kvaster.iptv;
+
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+
+import com.kvaster.utils.digest.Digest;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+
+/**
+ * Immutable response body with validators. Strong entity tag is computed once on creation, so conditional
+ * and range requests are served without touching content.
+ */
+public class HttpContent {
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final byte[] data;
+    private final String etag;
+    private final long lastModified;
+
+    public HttpContent(byte[] data, long lastModified) {
+        this.data = data;
+        this.etag = '"' + Digest.md5().digest(data) + '"';
+        this.lastModified = lastModified;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Sends content with respect to conditional headers. Single byte range is supported, so interrupted
+     * downloads can be resumed. Multiple ranges are not supported and full content is sent in such case.
+     * Content type and other headers must be set by caller.
+     */
+    public void send(HttpServerExchange exchange) {
+        exchange.getResponseHeaders().put(Headers.ACCEPT_RANGES, "bytes");
+
+        if (HttpUtils.sendNotModified(exchange, etag, lastModified)) {
+            return;
+        }
+
+        int len = data.length;
+        int start = 0;
+        int end = len - 1;
+
+        String range = exchange.getRequestHeaders().getFirst(Headers.RANGE);
+        if (range != null && isRangeValid(exchange.getRequestHeaders().getFirst(Headers.IF_RANGE))) {
+            long[] r = parseRange(range, len);
+            if (r == null) {
+                // malformed range is ignored
+            } else if (r.length == 0) {
+                exchange.setStatusCode(HTTP_RANGE_NOT_SATISFIABLE);
+                exchange.getResponseHeaders().put(Headers.CONTENT_RANGE, "bytes */" + len);
+                exchange.endExchange();
+                return;
+            } else {
+                start = (int) r[0];
+                end = (int) r[1];
+
+                exchange.setStatusCode(HttpURLConnection.HTTP_PARTIAL);
+                exchange.getResponseHeaders().put(Headers.CONTENT_RANGE, "bytes " + start + '-' + end + '/' + len);
+            }
+        }
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, Integer.toString(end - start + 1));
+        exchange.getResponseSender().send(ByteBuffer.wrap(data, start, end - start + 1));
+    }
+
+    /**
+     * Range must be ignored in case content was changed since client got its part.
+     */
+    private boolean isRangeValid(String ifRange) {
+        if (ifRange == null) {
+            return true;
+        }
+
+        if (ifRange.startsWith("\"")) {
+            // strong comparison
+            return ifRange.equals(etag);
+        }
+
+        long date = HttpUtils.parseDate(ifRange);
+        return date >= 0 && lastModified / 1000 == date / 1000;
+    }
+
+    /**
+     * Parses single range in forms: bytes=start-end, bytes=start- and bytes=-suffix.
+     *
+     * @return inclusive start and end, empty array in case range is not satisfiable or null in case range is not supported
+     */
+    static long[] parseRange(String range, long len) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+
+        int idx = range.indexOf('-');
+        if (idx < 0) {
+            return null;
+        }
+
+        String first = range.substring(6, idx).strip();
+        String last = range.substring(idx + 1).strip();
+
+        long start;
+        long end;
+
+        try {
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+
+                long suffix = Long.parseLong(last);
+                if (suffix == 0) {
+                    return new long[0];
+                }
+
+                start = Math.max(0, len - suffix);
+                end = len - 1;
+            } else {
+                start = Long.parseLong(first);
+                if (last.isEmpty()) {
+                    end = len - 1;
+                } else {
+                    end = Long.parseLong(last);
+                    if (end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, len - 1);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (start < 0 || start >= len) {
+            return new long[0];
+        }
+
+        return new long[] { start, end };
+    }
+}
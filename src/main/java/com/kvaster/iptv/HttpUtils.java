@@ -2,10 +2,16 @@ package com.kvaster.iptv;
 
 import java.net.HttpURLConnection;
 import java.net.http.HttpResponse;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
 import io.undertow.util.HttpString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,4 +47,99 @@ public class HttpUtils {
 
         return true;
     }
+
+    public static String formatDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * @return time in millis or -1 in case date is malformed
+     */
+    public static long parseDate(String date) {
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds validators to response and checks conditional request headers. Not modified response is sent
+     * in case client already has the same content.
+     *
+     * @param etag strong entity tag with quotes
+     * @param lastModified time of last modification in millis
+     * @return true if not modified response was sent
+     */
+    public static boolean sendNotModified(HttpServerExchange exchange, String etag, long lastModified) {
+        exchange.getResponseHeaders()
+                .put(Headers.ETAG, etag)
+                .put(Headers.LAST_MODIFIED, formatDate(lastModified));
+
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst(Headers.IF_NONE_MATCH);
+        boolean notModified;
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when If-None-Match is present
+            notModified = matchesEtag(ifNoneMatch, etag);
+        } else {
+            String ifModifiedSince = exchange.getRequestHeaders().getFirst(Headers.IF_MODIFIED_SINCE);
+            long since = ifModifiedSince == null ? -1 : parseDate(ifModifiedSince);
+            // http dates have seconds precision
+            notModified = since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+
+        if (notModified) {
+            exchange.setStatusCode(HttpURLConnection.HTTP_NOT_MODIFIED);
+            exchange.endExchange();
+        }
+
+        return notModified;
+    }
+
+    public static boolean acceptsGzip(HttpServerExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst(Headers.ACCEPT_ENCODING);
+        if (accept == null) {
+            return false;
+        }
+
+        for (String enc : accept.split(",")) {
+            String[] parts = enc.split(";");
+            if ("gzip".equalsIgnoreCase(parts[0].strip())) {
+                // gzip;q=0 means gzip is not acceptable
+                for (int i = 1; i < parts.length; i++) {
+                    String p = parts[i].strip();
+                    if (p.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(p.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean matchesEtag(String header, String etag) {
+        for (String tag : header.split(",")) {
+            tag = tag.strip();
+            if (tag.equals("*")) {
+                return true;
+            }
+
+            // weak comparison is used for If-None-Match
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
 }
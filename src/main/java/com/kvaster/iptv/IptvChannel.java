@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
@@ -60,14 +61,36 @@ public class IptvChannel {
         return catchupDays;
     }
 
+    public List<IptvServerChannel> getServerChannels() {
+        return Collections.unmodifiableList(serverChannels);
+    }
+
     public void addServerChannel(IptvServerChannel serverChannel) {
         serverChannels.add(serverChannel);
     }
 
+    /**
+     * @return true if channel has same properties and exactly same server channel instances
+     */
+    public boolean isSame(String logo, Collection<String> groups, String xmltvId, int catchupDays, List<IptvServerChannel> serverChannels) {
+        return Objects.equals(this.logo, logo)
+                && this.groups.size() == groups.size() && this.groups.containsAll(groups)
+                && Objects.equals(this.xmltvId, xmltvId)
+                && this.catchupDays == catchupDays
+                && this.serverChannels.equals(serverChannels);
+    }
+
     public IptvServerChannel acquire(String userId) {
         List<IptvServerChannel> scs = new ArrayList<>(serverChannels);
         Collections.shuffle(scs, rand);
 
+        // prefer already active upstream sessions - joining them doesn't need additional connection
+        for (IptvServerChannel sc : scs) {
+            if (sc.join(userId)) {
+                return sc;
+            }
+        }
+
         for (IptvServerChannel sc : scs) {
             if (sc.acquire(userId)) {
                 return sc;
@@ -0,0 +1,134 @@
+package com.kvaster.iptv;
+
+import java.util.function.LongSupplier;
+
+import com.kvaster.utils.metrics.Counter;
+import com.kvaster.utils.metrics.Histogram;
+import com.kvaster.utils.metrics.LatencyHistogram;
+import com.kvaster.utils.metrics.MetricsRegistry;
+
+/**
+ * Application metrics. Labeled metrics are resolved once per server, group or loader and are kept by their owners,
+ * so recording is only counter or histogram update.
+ */
+public class IptvMetrics {
+    // latencies are recorded in micros
+    private static final double MICROS = 1_000_000;
+
+    private static final long[] UPDATE_MS = {1000, 5000, 10000, 30000, 60000, 120000, 300000};
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    private final MetricsRegistry.GaugeFamily users = registry.gauge("iptv_users_active", "Active users");
+    private final MetricsRegistry.GaugeFamily connectionsAcquired = registry.gauge(
+            "iptv_server_connections_acquired", "Acquired upstream connections", "server", "connection");
+    private final MetricsRegistry.GaugeFamily connectionsMax = registry.gauge(
+            "iptv_server_connections_max", "Max upstream connections", "server", "connection");
+
+    private final MetricsRegistry.CounterFamily streams = registry.counter(
+            "iptv_streams_total", "Started streams", "server");
+    private final MetricsRegistry.CounterFamily readBytes = registry.counter(
+            "iptv_stream_read_bytes_total", "Bytes received from upstream by streams", "server");
+    private final MetricsRegistry.CounterFamily writeBytes = registry.counter(
+            "iptv_stream_write_bytes_total", "Bytes sent to clients by streams", "server");
+    private final MetricsRegistry.SummaryFamily streamStart = registry.summary(
+            "iptv_stream_start_seconds", "Time till upstream stream or segment response", MICROS, "server", "type");
+    private final MetricsRegistry.SummaryFamily segmentTransfer = registry.summary(
+            "iptv_segment_transfer_seconds", "Full segment time from request till last byte sent", MICROS, "server");
+
+    private final MetricsRegistry.SummaryFamily infoLoad = registry.summary(
+            "iptv_info_load_seconds", "Hls playlist load time", MICROS, "server");
+    private final MetricsRegistry.CounterFamily infoRetries = registry.counter(
+            "iptv_info_retries_total", "Hls playlist load retries", "server");
+    private final MetricsRegistry.CounterFamily channelFailed = registry.counter(
+            "iptv_channel_failed_total", "Channels marked as failed", "server");
+
+    private final MetricsRegistry.SummaryFamily loaderDuration = registry.summary(
+            "iptv_loader_seconds", "Playlist and epg load time", MICROS, "loader");
+    private final MetricsRegistry.CounterFamily loaderRetries = registry.counter(
+            "iptv_loader_retries_total", "Playlist and epg load retries", "loader");
+    private final MetricsRegistry.CounterFamily loaderFailures = registry.counter(
+            "iptv_loader_failures_total", "Playlist and epg loads failed after all retries", "loader");
+
+    private final MetricsRegistry.HistogramFamily groupUpdate = registry.histogram(
+            "iptv_group_update_seconds", "Server group update time", UPDATE_MS, 1000, "group");
+    private final MetricsRegistry.CounterFamily groupUpdateFailures = registry.counter(
+            "iptv_group_update_failures_total", "Failed server group updates", "group");
+
+    public class Server {
+        final Counter streams;
+        final Counter readBytes;
+        final Counter writeBytes;
+        final LatencyHistogram streamStart;
+        final LatencyHistogram segmentStart;
+        final LatencyHistogram segmentTransfer;
+        final LatencyHistogram infoLoad;
+        final Counter infoRetries;
+        final Counter channelFailed;
+
+        private Server(String name) {
+            streams = IptvMetrics.this.streams.labels(name);
+            readBytes = IptvMetrics.this.readBytes.labels(name);
+            writeBytes = IptvMetrics.this.writeBytes.labels(name);
+            streamStart = IptvMetrics.this.streamStart.labels(name, "stream");
+            segmentStart = IptvMetrics.this.streamStart.labels(name, "segment");
+            segmentTransfer = IptvMetrics.this.segmentTransfer.labels(name);
+            infoLoad = IptvMetrics.this.infoLoad.labels(name);
+            infoRetries = IptvMetrics.this.infoRetries.labels(name);
+            channelFailed = IptvMetrics.this.channelFailed.labels(name);
+        }
+    }
+
+    public class Loader {
+        final LatencyHistogram duration;
+        final Counter retries;
+        final Counter failures;
+
+        private Loader(String name) {
+            duration = loaderDuration.labels(name);
+            retries = loaderRetries.labels(name);
+            failures = loaderFailures.labels(name);
+        }
+    }
+
+    public class Group {
+        final Histogram update;
+        final Counter failures;
+
+        private Group(String name) {
+            update = groupUpdate.labels(name);
+            failures = groupUpdateFailures.labels(name);
+        }
+    }
+
+    public Server server(String name) {
+        return new Server(name);
+    }
+
+    public void connection(String server, int connection, LongSupplier acquired, long max) {
+        String c = String.valueOf(connection);
+        connectionsAcquired.register(acquired, server, c);
+        connectionsMax.register(() -> max, server, c);
+    }
+
+    public Loader loader(String name) {
+        return new Loader(name);
+    }
+
+    public Group group(String name) {
+        return new Group(name);
+    }
+
+    public void users(LongSupplier count) {
+        users.register(count);
+    }
+
+    /**
+     * @return metrics in prometheus text format
+     */
+    public String render() {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        registry.write(sb);
+        return sb.toString();
+    }
+}
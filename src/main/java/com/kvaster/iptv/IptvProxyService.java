@@ -1,33 +1,59 @@
 package com.kvaster.iptv;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
-import java.net.http.HttpClient;
+import java.net.URI;
 import java.nio.ByteBuffer;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import com.kvaster.iptv.config.IptvProxyConfig;
+import com.kvaster.iptv.m3u.M3uChannel;
 import com.kvaster.iptv.m3u.M3uDoc;
 import com.kvaster.iptv.m3u.M3uParser;
 import com.kvaster.iptv.xmltv.XmltvChannel;
 import com.kvaster.iptv.xmltv.XmltvDoc;
+import com.kvaster.iptv.xmltv.XmltvProgramme;
+import com.kvaster.iptv.xmltv.XmltvReader;
+import com.kvaster.iptv.xmltv.XmltvSpool;
 import com.kvaster.iptv.xmltv.XmltvUtils;
+import com.kvaster.iptv.xmltv.XmltvWriter;
 import com.kvaster.utils.digest.Digest;
+import com.kvaster.utils.timer.HashedWheelTimer;
 import io.undertow.Undertow;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
@@ -47,23 +73,79 @@ public class IptvProxyService implements HttpHandler {
         final Duration xmltvAfter;
         final List<Pattern> groupFilters;
 
-        byte[] xmltvCache;
+        // last successfully parsed xmltv data
+        final Path xmltvCache;
+        // last published channels and programmes
+        final Path snapshot;
+
+        // last published update, guarded by publish lock for writes
+        volatile GroupUpdate current;
+
+        // sources of last published update, reused in case they are not modified
+        final Map<IptvServer, Playlist> playlists = new ConcurrentHashMap<>();
+        byte[] xmltvHash;
+
+        final IptvMetrics.Group metrics;
 
-        IptvServerGroup(String name, String xmltvUrl, Duration xmltvBefore, Duration xmltvAfter, List<Pattern> groupFilters) {
+        IptvServerGroup(
+                String name, String xmltvUrl, Duration xmltvBefore, Duration xmltvAfter, List<Pattern> groupFilters, Path cacheDir,
+                IptvMetrics.Group metrics
+        ) {
             this.name = name;
+            this.metrics = metrics;
             this.xmltvUrl = xmltvUrl;
             this.xmltvBefore = xmltvBefore;
             this.xmltvAfter = xmltvAfter;
             this.groupFilters = groupFilters;
+            this.xmltvCache = cacheDir.resolve("xmltv-" + Digest.md5(name));
+            this.snapshot = cacheDir.resolve("group-" + Digest.md5(name));
+        }
+
+        /**
+         * Snapshot is valid only while group configuration is not changed.
+         */
+        String fingerprint() {
+            StringBuilder sb = new StringBuilder()
+                    .append(name).append('\n')
+                    .append(xmltvUrl).append('\n')
+                    .append(xmltvBefore).append('\n')
+                    .append(xmltvAfter).append('\n');
+            groupFilters.forEach((f) -> sb.append(f.pattern()).append('\n'));
+            servers.forEach((s) -> sb.append(s.getName()).append('|').append(s.getUrl()).append('\n'));
+            return Digest.sha256(sb.toString());
+        }
+
+        boolean acceptGroups(Set<String> groups) {
+            return groupFilters.isEmpty() || groups.stream().anyMatch((g) -> groupFilters.stream().anyMatch((f) -> f.matcher(g).find()));
+        }
+    }
+
+    /**
+     * Parsed playlist of server with hash of its content.
+     */
+    private static class Playlist {
+        final M3uDoc doc;
+        final byte[] hash;
+        // false in case playlist is the same as in last published update
+        final boolean changed;
+
+        Playlist(M3uDoc doc, byte[] hash, boolean changed) {
+            this.doc = doc;
+            this.hash = hash;
+            this.changed = changed;
         }
     }
 
     private static final String TOKEN_TAG = "t";
 
+    private static final String EPG_FILE = "epg.xml.gz";
+
     private final Undertow undertow;
 
     private static final int SCHEDULER_THREADS = 2;
     private final ScheduledExecutorService scheduler = createScheduler();
+    // frequently rescheduled timeouts: user expiry, stream read timeouts and retries
+    private final HashedWheelTimer timer = new HashedWheelTimer("iptv-timer", 10, TimeUnit.MILLISECONDS, 512);
 
     private final BaseUrl baseUrl;
     private final String tokenSalt;
@@ -72,19 +154,38 @@ public class IptvProxyService implements HttpHandler {
 
     private final List<IptvServerGroup> serverGroups = new ArrayList<>();
     private volatile Map<String, IptvChannel> channels = new HashMap<>();
-    private Map<String, IptvServerChannel> serverChannelsByUrl = new HashMap<>();
+    private volatile Map<String, IptvServerChannel> serverChannelsByUrl = new HashMap<>();
+    private volatile M3uTemplate m3uTemplate = new M3uTemplate(List.of(), TOKEN_TAG, System.currentTimeMillis(), M3uTemplate.MIN_GZIP_CACHE_SIZE);
+    private final Object publishLock = new Object();
+    // epg is written outside of publish lock, newest epg wins - guarded by publish lock
+    private long epgVersion;
+    private long publishedEpgVersion;
+    // guarded by itself
+    private final Object epgSaveLock = new Object();
+    private long savedEpgVersion;
 
     private final Map<String, IptvUser> users = new ConcurrentHashMap<>();
 
     private final boolean allowAnonymous;
+    private final boolean metricsEnabled;
     private final Set<String> allowedUsers;
 
-    private final AsyncLoader<String> channelsLoader;
-    private final AsyncLoader<byte[]> xmltvLoader;
-    private volatile byte[] xmltvData = null;
+    private final AsyncLoader<InputStream> channelsLoader;
+    // playlists are parsed while downloaded - parsing is blocking
+    private final ExecutorService parserExecutor = Executors.newCachedThreadPool();
+    // group updates - merging and xmltv parsing is cpu bound
+    private final ExecutorService updateExecutor;
+    private final AsyncLoader<InputStream> xmltvLoader;
+    private final Path cacheDir;
+    private volatile HttpContent xmltvData = null;
 
     private final HttpClient defaultHttpClient;
 
+    private final SegmentCache segmentCache;
+    private final StreamBufferLimits bufferLimits;
+
+    private final IptvMetrics metrics = new IptvMetrics();
+
     private static ScheduledExecutorService createScheduler() {
         ScheduledThreadPoolExecutor s = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS, (r, e) -> LOG.error("execution rejected"));
         s.setRemoveOnCancelPolicy(true);
@@ -104,10 +205,44 @@ public class IptvProxyService implements HttpHandler {
         this.tokenSalt = config.getTokenSalt();
 
         this.allowAnonymous = config.getAllowAnonymous();
+        this.metricsEnabled = config.getMetricsEnabled();
         this.allowedUsers = config.getUsers();
 
-        channelsLoader = AsyncLoader.stringLoader(config.getChannelsTimeoutSec(), config.getChannelsTotalTimeoutSec(), config.getChannelsRetryDelayMs(), scheduler);
-        xmltvLoader = AsyncLoader.bytesLoader(config.getXmltvTimeoutSec(), config.getXmltvTotalTimeoutSec(), config.getXmltvRetryDelayMs(), scheduler);
+        channelsLoader = AsyncLoader.streamLoader(
+                config.getChannelsTimeoutSec(), config.getChannelsTotalTimeoutSec(), config.getChannelsRetryDelayMs(), timer, metrics.loader("channels")
+        );
+        xmltvLoader = AsyncLoader.streamLoader(
+                config.getXmltvTimeoutSec(), config.getXmltvTotalTimeoutSec(), config.getXmltvRetryDelayMs(), timer, metrics.loader("xmltv")
+        );
+
+        metrics.users(() -> users.size());
+
+        if (config.getSegmentCacheSizeMb() > 0) {
+            long ttlMs = TimeUnit.SECONDS.toMillis(config.getSegmentCacheTtlSec());
+            segmentCache = new SegmentCache(config.getSegmentCacheSizeMb() * 1024 * 1024, ttlMs);
+            // release memory even if there are no requests
+            scheduler.scheduleWithFixedDelay(segmentCache::purge, ttlMs, ttlMs, TimeUnit.MILLISECONDS);
+        } else {
+            segmentCache = null;
+        }
+
+        bufferLimits = new StreamBufferLimits(
+                config.getStreamBufferKb() * 1024, config.getStreamsBufferMb() * 1024 * 1024, config.getDisconnectSlowClients()
+        );
+
+        cacheDir = config.getCacheDir() == null ? Path.of(System.getProperty("java.io.tmpdir"), "iptvproxy") : Path.of(config.getCacheDir());
+        try {
+            Files.createDirectories(cacheDir);
+
+            // programme spools left after unclean shutdown
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(cacheDir, "iptvproxy-*.xmltv")) {
+                for (Path p : ds) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
 
         undertow = Undertow.builder()
                 .addHttpListener(config.getPort(), config.getHost())
@@ -115,25 +250,44 @@ public class IptvProxyService implements HttpHandler {
                 .build();
 
         config.getServers().forEach((sc) -> {
-            IptvServerGroup sg = new IptvServerGroup(sc.getName(), sc.getXmltvUrl(), sc.getXmltvBefore(), sc.getXmltvAfter(), sc.getGroupFilters());
+            IptvServerGroup sg = new IptvServerGroup(
+                    sc.getName(), sc.getXmltvUrl(), sc.getXmltvBefore(), sc.getXmltvAfter(), sc.getGroupFilters(), cacheDir, metrics.group(sc.getName())
+            );
             serverGroups.add(sg);
-            sc.getConnections().forEach((cc) -> sg.servers.add(new IptvServer(sc, cc, defaultHttpClient)));
+
+            IptvMetrics.Server sm = metrics.server(sc.getName());
+            sc.getConnections().forEach((cc) -> {
+                IptvServer s = new IptvServer(sc, cc, defaultHttpClient, sm);
+                metrics.connection(sc.getName(), sg.servers.size(), s::getAcquired, cc.getMaxConnections());
+                sg.servers.add(s);
+            });
         });
+
+        updateExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(serverGroups.size(), Runtime.getRuntime().availableProcessors())));
     }
 
     public void startService() {
         LOG.info("starting");
 
-        updateChannels();
+        List<IptvServerGroup> restored = restoreSnapshots();
+
+        // groups without snapshot must be loaded before start
+        updateChannels(serverGroups.stream().filter((sg) -> !restored.contains(sg)).toList());
 
         undertow.start();
 
+        // restored groups are updated in background
+        restored.forEach((sg) -> updateExecutor.execute(() -> updateGroup(sg)));
+
         LOG.info("started");
     }
 
     public void stopService() {
         LOG.info("stopping");
 
+        parserExecutor.shutdownNow();
+        updateExecutor.shutdownNow();
+
         try {
             scheduler.shutdownNow();
             if (!scheduler.awaitTermination(60, TimeUnit.SECONDS)) {
@@ -144,215 +298,853 @@ public class IptvProxyService implements HttpHandler {
             LOG.error("interrupted while stopping scheduler");
         }
 
+        timer.stop();
+
         undertow.stop();
 
         LOG.info("stopped");
     }
 
-    private void scheduleChannelsUpdate(long delayMins) {
-        scheduler.schedule(() -> new Thread(this::updateChannels).start(), delayMins, TimeUnit.MINUTES);
+    private void scheduleGroupUpdate(IptvServerGroup sg, long delayMins) {
+        scheduler.schedule(() -> updateExecutor.execute(() -> updateGroup(sg)), delayMins, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Updates groups in parallel and waits for completion. Each group is rescheduled independently after this.
+     */
+    private void updateChannels(List<IptvServerGroup> groups) {
+        CompletableFuture.allOf(
+                groups.stream()
+                        .map((sg) -> CompletableFuture.runAsync(() -> updateGroup(sg), updateExecutor))
+                        .toArray(CompletableFuture[]::new)
+        ).join();
     }
 
-    private void updateChannels() {
-        if (updateChannelsImpl()) {
-            scheduleChannelsUpdate(240);
+    private void updateGroup(IptvServerGroup sg) {
+        boolean ok = false;
+        long startNanos = System.nanoTime();
+
+        try {
+            ok = updateGroupImpl(sg);
+        } catch (Exception e) {
+            LOG.error("error updating channels: {}", sg.name, e);
+        }
+
+        sg.metrics.update.observe(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+        if (ok) {
+            scheduleGroupUpdate(sg, 240);
         } else {
-            scheduleChannelsUpdate(1);
+            sg.metrics.failures.inc();
+            scheduleGroupUpdate(sg, 1);
         }
     }
 
-    private boolean updateChannelsImpl() {
-        LOG.info("updating channels");
+    private boolean updateGroupImpl(IptvServerGroup sg) {
+        LOG.info("updating channels: {}", sg.name);
+
+        CompletableFuture<InputStream> xmltvLoad = sg.xmltvUrl == null ? null : loadXmltv(sg);
+
+        Map<IptvServer, CompletableFuture<Playlist>> loads = new LinkedHashMap<>();
+        sg.servers.forEach(s -> loads.put(s, loadChannels(sg, s)));
+
+        GroupUpdate gu = null;
+        boolean ok = false;
+
+        try {
+            // playlists are needed before xmltv programmes - programmes are filtered by channels from playlists
+            Map<IptvServer, Playlist> playlists = waitPlaylists(sg, loads);
+            if (playlists == null) {
+                LOG.error("channels update failed: {}", sg.name);
+                return false;
+            }
+
+            boolean changed = sg.current == null || playlists.values().stream().anyMatch((p) -> p.changed);
+
+            InputStream data = waitXmltv(sg, xmltvLoad);
+            if (!changed && (data == null || xmltvLoader.isNotModified(data))) {
+                // in case xmltv is not loaded programmes from last update are kept
+                LOG.info("channels not changed: {}", sg.name);
+                ok = true;
+                return true;
+            }
+
+            gu = createUpdate(sg, playlists, data);
+
+            if (!changed && gu.xmltvHash != null && Arrays.equals(gu.xmltvHash, sg.xmltvHash)) {
+                LOG.info("channels not changed: {}", sg.name);
+                ok = true;
+                return true;
+            }
+
+            // published spool is read concurrently, so it must be finished before publish
+            gu.finishSpool();
+
+            GroupSnapshot snapshot = publish(gu);
+
+            sg.playlists.putAll(playlists);
+            sg.xmltvHash = gu.xmltvHash;
+            gu = null;
+
+            // group updates are sequential, so published spool is not closed while snapshot is written
+            writeSnapshot(sg, snapshot);
+
+            // epg is saved after snapshot, otherwise it would be considered outdated on restore
+            updateEpg();
 
+            ok = true;
+            return true;
+        } catch (IOException e) {
+            LOG.error("error finishing xmltv spool: {}, {}", sg.name, e.getMessage());
+            return false;
+        } finally {
+            if (gu != null) {
+                gu.close();
+            }
+
+            // close stream which was not consumed due to update failure
+            if (xmltvLoad != null) {
+                xmltvLoad.thenAccept(IptvProxyService::closeQuietly);
+            }
+
+            if (!ok) {
+                // loaded data was not published, so it must be loaded again next time
+                sg.servers.forEach((s) -> channelsLoader.invalidate(playlistKey(sg, s)));
+                xmltvLoader.invalidate(xmltvKey(sg));
+            }
+        }
+    }
+
+    /**
+     * Publishes group update. Combined channels are rebuilt from current data of all groups and replaced at once.
+     * Epg must be updated with {@link #updateEpg()} after publish.
+     *
+     * @return snapshot of published update - it must be written outside of publish lock
+     */
+    private GroupSnapshot publish(GroupUpdate gu) {
+        synchronized (publishLock) {
+            IptvServerGroup sg = gu.sg;
+            GroupUpdate prev = sg.current;
+
+            // playlists and previous update are not needed anymore
+            gu.m3us.clear();
+            gu.prev = null;
+            sg.current = gu;
+
+            int total = rebuild();
+
+            GroupSnapshot snapshot = createSnapshot(gu);
+
+            int removed = 0;
+            if (prev != null) {
+                for (String id : prev.chs.keySet()) {
+                    if (!gu.chs.containsKey(id)) {
+                        removed++;
+                    }
+                }
+
+                prev.release();
+            }
+
+            LOG.info(
+                    "channels updated: {}, added: {}, changed: {}, unchanged: {}, removed: {}, total: {}",
+                    sg.name, gu.added, gu.changed, gu.unchanged, removed, total
+            );
+
+            return snapshot;
+        }
+    }
+
+    /**
+     * Rebuilds combined channels from current data of all groups. Must be called under publish lock.
+     *
+     * @return total channels count
+     */
+    private int rebuild() {
         Map<String, IptvChannel> chs = new HashMap<>();
         Map<String, IptvServerChannel> byUrl = new HashMap<>();
+        for (IptvServerGroup g : serverGroups) {
+            GroupUpdate cur = g.current;
+            if (cur != null) {
+                chs.putAll(cur.chs);
+                byUrl.putAll(cur.byUrl);
+            }
+        }
 
-        Digest digest = Digest.sha256();
-        Digest md5 = Digest.md5();
+        // unchanged channels are the same instances, so active sessions are not affected
+        channels = chs;
+        serverChannelsByUrl = byUrl;
+        // playlist is rendered once per channels change
+        m3uTemplate = new M3uTemplate(
+                chs.values(), TOKEN_TAG, Math.max(System.currentTimeMillis(), m3uTemplate.getModified() + 1),
+                Math.max(M3uTemplate.MIN_GZIP_CACHE_SIZE, allowedUsers.size())
+        );
 
-        Map<IptvServer, CompletableFuture<String>> loads = new HashMap<>();
-        Map<IptvServerGroup, CompletableFuture<byte[]>> xmltvLoads = new HashMap<>();
-        serverGroups.forEach((sg) -> {
-            if (sg.xmltvUrl != null) {
-                xmltvLoads.put(sg, loadXmltv(sg));
-            }
-            sg.servers.forEach(s -> loads.put(s, loadChannels(s)));
+        return chs.size();
+    }
+
+    private GroupSnapshot createSnapshot(GroupUpdate gu) {
+        IptvServerGroup sg = gu.sg;
+
+        GroupSnapshot s = new GroupSnapshot();
+        s.fingerprint = sg.fingerprint();
+        s.channelIds.putAll(gu.channelIds);
+        s.xmltvIds.putAll(gu.xmltvIds);
+        gu.xmltvChannels.forEach((ch) -> s.xmltvChannels.add(ch.getId()));
+        s.spool = gu.spool;
+
+        gu.chs.values().forEach((ch) -> {
+            GroupSnapshot.Channel c = new GroupSnapshot.Channel();
+            c.id = ch.getId();
+            c.name = ch.getName();
+            c.logo = ch.getLogo();
+            c.groups.addAll(ch.getGroups());
+            c.xmltvId = ch.getXmltvId();
+            c.catchupDays = ch.getCatchupDays();
+            ch.getServerChannels().forEach((sc) -> c.serverChannels.add(new GroupSnapshot.ServerChannel(sg.servers.indexOf(sc.getServer()), sc.getChannelUrl())));
+            s.channels.add(c);
         });
 
-        XmltvDoc newXmltv = new XmltvDoc()
-                .setChannels(new ArrayList<>())
-                .setProgrammes(new ArrayList<>())
-                .setGeneratorName("iptvproxy");
+        return s;
+    }
 
-        for (IptvServerGroup sg : serverGroups) {
-            XmltvDoc xmltv = null;
-            if (sg.xmltvUrl != null) {
-                LOG.info("waiting for xmltv data to be downloaded");
+    private void writeSnapshot(IptvServerGroup sg, GroupSnapshot s) {
+        try {
+            s.write(sg.snapshot);
+        } catch (IOException e) {
+            LOG.warn("error saving snapshot: {}, {}", sg.name, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes combined epg of all groups outside of publish lock. Published group data is retained while it is
+     * written, so concurrent publish of other groups doesn't remove it. In case of concurrent updates only
+     * newest epg is published.
+     */
+    private void updateEpg() {
+        List<GroupUpdate> updates = new ArrayList<>();
+        long version;
+
+        synchronized (publishLock) {
+            version = ++epgVersion;
+            for (IptvServerGroup sg : serverGroups) {
+                if (sg.current != null) {
+                    sg.current.retain();
+                    updates.add(sg.current);
+                }
+            }
+        }
+
+        byte[] data;
+        try {
+            data = isEpgOutdated(version) ? null : writeEpg(updates);
+        } finally {
+            synchronized (publishLock) {
+                updates.forEach(GroupUpdate::release);
+            }
+        }
+
+        if (data == null) {
+            return;
+        }
+
+        synchronized (publishLock) {
+            if (version < publishedEpgVersion) {
+                return;
+            }
+
+            publishedEpgVersion = version;
+            xmltvData = new HttpContent(data, System.currentTimeMillis());
+        }
+
+        synchronized (epgSaveLock) {
+            if (version > savedEpgVersion) {
+                savedEpgVersion = version;
+                saveEpg(data);
+            }
+        }
+    }
+
+    /**
+     * @return true in case newer epg update is started - it contains data of all groups published before
+     */
+    private boolean isEpgOutdated(long version) {
+        synchronized (publishLock) {
+            if (version < epgVersion) {
+                LOG.info("epg update skipped, newer update is running");
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private void saveEpg(byte[] epg) {
+        Path file = cacheDir.resolve(EPG_FILE);
+        Path tmp = cacheDir.resolve(EPG_FILE + ".tmp");
 
-                byte[] data = null;
+        try {
+            Files.write(tmp, epg);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("error saving epg: {}", e.getMessage());
+        }
+    }
 
+    /**
+     * Loads last published state of groups.
+     *
+     * @return groups restored from snapshots
+     */
+    private List<IptvServerGroup> restoreSnapshots() {
+        List<IptvServerGroup> restored = new ArrayList<>();
+        long newest = 0;
+
+        synchronized (publishLock) {
+            for (IptvServerGroup sg : serverGroups) {
+                GroupSnapshot s;
                 try {
-                    data = xmltvLoads.get(sg).get();
-                } catch (InterruptedException | ExecutionException e) {
-                    LOG.warn("error loading xmltv data");
+                    s = GroupSnapshot.read(sg.snapshot, sg.fingerprint(), cacheDir);
+                    if (s == null) {
+                        continue;
+                    }
+                    newest = Math.max(newest, Files.getLastModifiedTime(sg.snapshot).toMillis());
+                } catch (IOException e) {
+                    LOG.warn("error loading snapshot: {}, {}", sg.name, e.getMessage());
+                    continue;
                 }
 
-                if (data != null) {
-                    LOG.info("parsing xmltv data");
+                GroupUpdate gu = new GroupUpdate(sg, new LinkedHashMap<>(), null, null);
+                gu.channelIds.putAll(s.channelIds);
+                gu.xmltvIds.putAll(s.xmltvIds);
+                s.xmltvChannels.forEach((id) -> gu.xmltvChannels.add(new XmltvChannel().setId(id)));
+                gu.spool = s.spool;
+
+                for (GroupSnapshot.Channel c : s.channels) {
+                    IptvChannel channel = new IptvChannel(c.id, c.name, c.logo, c.groups, c.xmltvId, c.catchupDays);
+                    for (GroupSnapshot.ServerChannel sc : c.serverChannels) {
+                        IptvServer server = sg.servers.get(sc.server);
+                        IptvServerChannel serverChannel = new IptvServerChannel(server, sc.url, baseUrl.forPath('/' + c.id), c.id, c.name, timer, segmentCache, bufferLimits);
+                        channel.addServerChannel(serverChannel);
+                        gu.byUrl.put(sc.url, serverChannel);
+                    }
+                    gu.chs.put(c.id, channel);
+                }
+
+                sg.current = gu;
+                restored.add(sg);
 
-                    xmltv = XmltvUtils.parseXmltv(data);
-                    if (xmltv != null) {
-                        sg.xmltvCache = data;
+                LOG.info("snapshot loaded: {}, channels: {}", sg.name, gu.chs.size());
+            }
+
+            if (!restored.isEmpty()) {
+                // saved epg can be used only if it is not older then snapshots
+                HttpContent epg = null;
+                Path epgFile = cacheDir.resolve(EPG_FILE);
+                try {
+                    if (restored.size() == serverGroups.size() && Files.exists(epgFile)) {
+                        long modified = Files.getLastModifiedTime(epgFile).toMillis();
+                        if (modified >= newest) {
+                            epg = new HttpContent(Files.readAllBytes(epgFile), modified);
+                        }
                     }
+                } catch (IOException e) {
+                    LOG.warn("error loading epg: {}", e.getMessage());
                 }
 
-                if (xmltv == null && sg.xmltvCache != null) {
-                    xmltv = XmltvUtils.parseXmltv(sg.xmltvCache);
+                if (epg != null) {
+                    xmltvData = epg;
                 }
+
+                rebuild();
             }
+        }
 
-            Map<String, XmltvChannel> xmltvById = new HashMap<>();
-            Map<String, XmltvChannel> xmltvByName = new HashMap<>();
+        if (!restored.isEmpty() && xmltvData == null) {
+            updateEpg();
+        }
 
-            if (xmltv != null) {
-                xmltv.getChannels().forEach(ch -> {
-                    xmltvById.put(ch.getId(), ch);
-                    if (ch.getDisplayNames() != null) {
-                        ch.getDisplayNames().forEach(n -> xmltvByName.put(n.getText(), ch));
-                    }
-                });
+        return restored;
+    }
+
+    private Map<IptvServer, Playlist> waitPlaylists(IptvServerGroup sg, Map<IptvServer, CompletableFuture<Playlist>> loads) {
+        Map<IptvServer, Playlist> playlists = new LinkedHashMap<>();
+
+        for (IptvServer server : sg.servers) {
+            LOG.info("waiting for playlist: {}, url: {}", sg.name, server.getUrl());
+
+            Playlist p = null;
+
+            try {
+                p = loads.get(server).get();
+            } catch (InterruptedException | ExecutionException e) {
+                LOG.error("error waiting for channels load", e);
+            }
+
+            if (p == null) {
+                LOG.error("error loading m3u, update skipped");
+                return null;
             }
 
-            Map<String, String> xmltvIds = new HashMap<>();
+            playlists.put(server, p);
+        }
 
-            for (IptvServer server : sg.servers) {
-                LOG.info("parsing playlist: {}, url: {}", sg.name, server.getUrl());
+        return playlists;
+    }
 
-                String channels = null;
+    private InputStream waitXmltv(IptvServerGroup sg, CompletableFuture<InputStream> xmltvLoad) {
+        if (xmltvLoad == null) {
+            return null;
+        }
 
-                try {
-                    channels = loads.get(server).get();
-                } catch (InterruptedException | ExecutionException e) {
-                    LOG.error("error waiting for channels load", e);
-                }
+        LOG.info("waiting for xmltv data to be downloaded: {}", sg.name);
 
-                if (channels == null) {
-                    return false;
-                }
+        try {
+            return xmltvLoad.get();
+        } catch (InterruptedException | ExecutionException e) {
+            LOG.warn("error loading xmltv data");
+            return null;
+        }
+    }
+
+    /**
+     * @param data xmltv data, not modified result or null in case xmltv data was not loaded
+     */
+    private GroupUpdate createUpdate(IptvServerGroup sg, Map<IptvServer, Playlist> playlists, InputStream data) {
+        Digest digest = Digest.sha256();
+        Digest md5 = Digest.md5();
 
-                M3uDoc m3u = M3uParser.parse(channels);
-                if (m3u == null) {
-                    LOG.error("error parsing m3u, update skipped");
-                    return false;
+        Map<IptvServer, M3uDoc> m3us = new LinkedHashMap<>();
+        playlists.forEach((s, p) -> m3us.put(s, p.doc));
+
+        GroupUpdate gu = null;
+
+        if (data != null && !xmltvLoader.isNotModified(data)) {
+            LOG.info("parsing xmltv data: {}", sg.name);
+
+            gu = new GroupUpdate(sg, m3us, digest, md5);
+            if (!parseXmltv(sg, data, gu)) {
+                gu.close();
+                gu = null;
+
+                // cached data is older then loaded one
+                xmltvLoader.invalidate(xmltvKey(sg));
+            }
+        }
+
+        if (gu == null && sg.xmltvUrl != null && Files.exists(sg.xmltvCache)) {
+            LOG.info("using cached xmltv data: {}", sg.name);
+
+            gu = new GroupUpdate(sg, m3us, digest, md5);
+            try (InputStream is = Files.newInputStream(sg.xmltvCache)) {
+                if (XmltvUtils.parseXmltv(is, gu)) {
+                    // cache contains exactly last published data only in case xmltv was not modified
+                    gu.xmltvHash = xmltvLoader.isNotModified(data) ? sg.xmltvHash : null;
+                } else {
+                    gu.close();
+                    gu = null;
                 }
+            } catch (IOException e) {
+                LOG.warn("error reading cached xmltv data: {}", e.getMessage());
+                gu.close();
+                gu = null;
+            }
+        }
 
-                m3u.getChannels().forEach((c) -> {
-                    // Unique ID will be formed from server name and channel name.
-                    // It seems that there will be no any other suitable way to identify channel.
-                    final String id = digest.digest(sg.name + "||" + c.getName());
-                    final String url = c.getUrl();
-
-                    IptvChannel channel = chs.get(id);
-                    if (channel == null) {
-                        String tvgId = c.getProp("tvg-id");
-                        String tvgName = c.getProp("tvg-name");
-
-                        if (!sg.groupFilters.isEmpty()) {
-                            if (c.getGroups().stream().noneMatch((g) -> sg.groupFilters.stream().anyMatch((f) -> f.matcher(g).find()))) {
-                                // skip channel - filtered by group filter
-                                return;
-                            }
-                        }
+        if (gu == null) {
+            if (sg.xmltvUrl != null) {
+                // there is nothing to reuse in case xmltv is not modified next time
+                xmltvLoader.invalidate(xmltvKey(sg));
+            }
 
-                        XmltvChannel xmltvCh = null;
-                        if (tvgId != null) {
-                            xmltvCh = xmltvById.get(tvgId);
-                        }
-                        if (xmltvCh == null && tvgName != null) {
-                            xmltvCh = xmltvByName.get(tvgName);
-                            if (xmltvCh == null) {
-                                xmltvCh = xmltvByName.get(tvgName.replace(' ', '_'));
-                            }
-                        }
-                        if (xmltvCh == null) {
-                            xmltvCh = xmltvByName.get(c.getName());
-                        }
+            // no xmltv data
+            gu = new GroupUpdate(sg, m3us, digest, md5);
+            gu.onChannelsEnd();
+        }
 
-                        String logo = c.getProp("tvg-logo");
-                        if (logo == null && xmltvCh != null && xmltvCh.getIcon() != null && xmltvCh.getIcon().getSrc() != null) {
-                            logo = xmltvCh.getIcon().getSrc();
-                        }
+        return gu;
+    }
 
-                        int days = 0;
-                        String daysStr = c.getProp("tvg-rec");
-                        if (daysStr == null) {
-                            daysStr = c.getProp("catchup-days");
-                        }
-                        if (daysStr != null) {
-                            try {
-                                days = Integer.parseInt(daysStr);
-                            } catch (NumberFormatException e) {
-                                LOG.warn("error parsing catchup days: {}, channel: {}", daysStr, c.getName());
-                            }
-                        }
+    private boolean parseXmltv(IptvServerGroup sg, InputStream data, GroupUpdate gu) {
+        Path tmp = sg.xmltvCache.resolveSibling(sg.xmltvCache.getFileName() + ".tmp");
+
+        boolean ok;
+        boolean copied = false;
+
+        try (data; OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+            Digest hash = Digest.sha256();
+            InputStream is = new TeeInputStream(hash.digestStream(data), os);
+            ok = XmltvUtils.parseXmltv(is, gu);
+            if (ok) {
+                // parser may stop before actual end of data (i.e. gzip trailer)
+                is.transferTo(OutputStream.nullOutputStream());
+                copied = true;
+                gu.xmltvHash = hash.digest();
+            }
+        } catch (IOException e) {
+            LOG.warn("error downloading xmltv data: {}", e.getMessage());
+            ok = false;
+        }
 
-                        String xmltvId = xmltvCh == null ? null : xmltvCh.getId();
-                        if (xmltvId != null) {
-                            String newId = md5.digest(sg.name + '-' + xmltvId);
-                            if (xmltvIds.putIfAbsent(xmltvId, newId) == null) {
-                                newXmltv.getChannels().add(new XmltvChannel().setId(newId));
-                            }
-                            xmltvId = newId;
-                        }
+        try {
+            if (ok && copied) {
+                Files.move(tmp, sg.xmltvCache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            LOG.warn("error updating xmltv cache: {}", e.getMessage());
+        }
 
-                        channel = new IptvChannel(id, c.getName(), logo, c.getGroups(), xmltvId, days);
-                        chs.put(id, channel);
+        return ok;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Writes combined epg. Programmes are copied from group spools right after all channels are written,
+     * so programmes are never kept in memory. Updates must be retained while epg is written.
+     */
+    private byte[] writeEpg(List<GroupUpdate> updates) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+            try (XmltvWriter w = new XmltvWriter(new GZIPOutputStream(bos, 64 * 1024))) {
+                w.writeStart(new XmltvDoc().setGeneratorName("iptvproxy"));
+
+                for (GroupUpdate gu : updates) {
+                    for (XmltvChannel ch : gu.xmltvChannels) {
+                        w.writeChannel(ch);
                     }
+                }
 
-                    IptvServerChannel serverChannel = serverChannelsByUrl.get(url);
-                    if (serverChannel == null) {
-                        serverChannel = new IptvServerChannel(server, url, baseUrl.forPath('/' + id), id, c.getName(), scheduler);
+                int programmes = 0;
+                for (GroupUpdate gu : updates) {
+                    if (gu.spool != null) {
+                        programmes += gu.spool.size();
+                        try (InputStream is = gu.spool.openStream()) {
+                            w.writeRaw(is);
+                        }
                     }
+                }
 
-                    channel.addServerChannel(serverChannel);
+                w.writeEnd();
+
+                LOG.info("epg written, programmes: {}", programmes);
+            }
+
+            return bos.toByteArray();
+        } catch (IOException e) {
+            LOG.error("error writing epg", e);
+            return null;
+        }
+    }
+
+    /**
+     * Channel data collected from all group playlists. Used to check whether existing channel can be reused.
+     */
+    private static class ChannelSpec {
+        final String name;
+        final String logo;
+        final Set<String> groups;
+        final String xmltvId;
+        final int catchupDays;
+        final List<IptvServerChannel> serverChannels = new ArrayList<>();
+
+        ChannelSpec(String name, String logo, Set<String> groups, String xmltvId, int catchupDays) {
+            this.name = name;
+            this.logo = logo;
+            this.groups = groups;
+            this.xmltvId = xmltvId;
+            this.catchupDays = catchupDays;
+        }
+    }
+
+    /**
+     * Channels and xmltv update for single server group. Xmltv data is processed in streaming mode: channels
+     * from playlists are matched right after xmltv channels are read and only programmes for matched channels
+     * are materialized. Matched programmes are serialized to on-disk spool right away.
+     */
+    private class GroupUpdate implements XmltvReader.Listener {
+        final IptvServerGroup sg;
+        final Map<IptvServer, M3uDoc> m3us;
+        final Digest digest;
+        final Digest md5;
+
+        final Map<String, XmltvChannel> xmltvById = new HashMap<>();
+        final Map<String, XmltvChannel> xmltvByName = new HashMap<>();
+        final Map<String, String> xmltvIds = new HashMap<>();
+
+        final ZonedDateTime endOf;
+        final ZonedDateTime startOf;
+
+        final Map<String, IptvChannel> chs = new HashMap<>();
+        final Map<String, IptvServerChannel> byUrl = new HashMap<>();
+        final List<XmltvChannel> xmltvChannels = new ArrayList<>();
+        XmltvSpool spool;
+        // hash of xmltv data or null if unknown
+        byte[] xmltvHash;
+
+        // digests are reused from previous update
+        GroupUpdate prev;
+        // guarded by publish lock
+        int refs = 1;
+        final Map<String, String> channelIds = new HashMap<>();
+
+        int added;
+        int changed;
+        int unchanged;
+
+        GroupUpdate(IptvServerGroup sg, Map<IptvServer, M3uDoc> m3us, Digest digest, Digest md5) {
+            this.sg = sg;
+            this.prev = sg.current;
+            this.m3us = m3us;
+            this.digest = digest;
+            this.md5 = md5;
+
+            endOf = sg.xmltvAfter == null ? null : ZonedDateTime.now().plus(sg.xmltvAfter);
+            startOf = sg.xmltvBefore == null ? null : ZonedDateTime.now().minus(sg.xmltvBefore);
+        }
 
-                    chs.put(id, channel);
-                    byUrl.put(url, serverChannel);
+        @Override
+        public void onChannel(XmltvChannel ch) {
+            xmltvById.put(ch.getId(), ch);
+            if (ch.getDisplayNames() != null) {
+                ch.getDisplayNames().forEach(n -> xmltvByName.put(n.getText(), ch));
+            }
+        }
+
+        @Override
+        public void onChannelsEnd() {
+            Map<String, ChannelSpec> specs = new LinkedHashMap<>();
+
+            m3us.forEach((server, m3u) -> m3u.getChannels().forEach((c) -> {
+                // Unique ID will be formed from server name and channel name.
+                // It seems that there will be no any other suitable way to identify channel.
+                final String id = channelIds.computeIfAbsent(c.getName(), (n) -> {
+                    String prevId = prev == null ? null : prev.channelIds.get(n);
+                    return prevId != null ? prevId : digest.digest(sg.name + "||" + n);
                 });
+                final String url = c.getUrl();
+
+                ChannelSpec spec = specs.get(id);
+                if (spec == null) {
+                    spec = createSpec(c);
+                    specs.put(id, spec);
+                }
+
+                // reuse server channel to keep active sessions, channel id is part of server channel
+                IptvServerChannel serverChannel = serverChannelsByUrl.get(url);
+                if (serverChannel == null || serverChannel.getServer() != server || !serverChannel.getChannelId().equals(id)) {
+                    serverChannel = new IptvServerChannel(server, url, baseUrl.forPath('/' + id), id, c.getName(), timer, segmentCache, bufferLimits);
+                }
+
+                spec.serverChannels.add(serverChannel);
+                byUrl.put(url, serverChannel);
+            }));
+
+            specs.forEach((id, spec) -> {
+                IptvChannel channel = channels.get(id);
+                if (channel == null) {
+                    added++;
+                } else if (channel.isSame(spec.logo, spec.groups, spec.xmltvId, spec.catchupDays, spec.serverChannels)) {
+                    unchanged++;
+                } else {
+                    changed++;
+                    channel = null;
+                }
+
+                if (channel == null) {
+                    channel = new IptvChannel(id, spec.name, spec.logo, spec.groups, spec.xmltvId, spec.catchupDays);
+                    spec.serverChannels.forEach(channel::addServerChannel);
+                }
+
+                chs.put(id, channel);
+            });
+
+            // xmltv channels are not needed anymore
+            xmltvById.clear();
+            xmltvByName.clear();
+        }
+
+        private ChannelSpec createSpec(M3uChannel c) {
+            String tvgId = c.getProp("tvg-id");
+            String tvgName = c.getProp("tvg-name");
+
+            XmltvChannel xmltvCh = null;
+            if (tvgId != null) {
+                xmltvCh = xmltvById.get(tvgId);
+            }
+            if (xmltvCh == null && tvgName != null) {
+                xmltvCh = xmltvByName.get(tvgName);
+                if (xmltvCh == null) {
+                    xmltvCh = xmltvByName.get(tvgName.replace(' ', '_'));
+                }
+            }
+            if (xmltvCh == null) {
+                xmltvCh = xmltvByName.get(c.getName());
             }
 
-            ZonedDateTime endOf = sg.xmltvAfter == null ? null : ZonedDateTime.now().plus(sg.xmltvAfter);
-            ZonedDateTime startOf = sg.xmltvBefore == null ? null : ZonedDateTime.now().minus(sg.xmltvBefore);
+            String logo = c.getProp("tvg-logo");
+            if (logo == null && xmltvCh != null && xmltvCh.getIcon() != null && xmltvCh.getIcon().getSrc() != null) {
+                logo = xmltvCh.getIcon().getSrc();
+            }
 
-            if (xmltv != null) {
-                xmltv.getProgrammes().forEach(p -> {
-                    if ((endOf == null || p.getStart().compareTo(endOf) < 0) && (startOf == null || p.getStop().compareTo(startOf) > 0)) {
-                        String newId = xmltvIds.get(p.getChannel());
-                        if (newId != null) {
-                            newXmltv.getProgrammes().add(p.copy().setChannel(newId));
-                        }
+            int days = 0;
+            String daysStr = c.getProp("tvg-rec");
+            if (daysStr == null) {
+                daysStr = c.getProp("catchup-days");
+            }
+            if (daysStr != null) {
+                try {
+                    days = Integer.parseInt(daysStr);
+                } catch (NumberFormatException e) {
+                    LOG.warn("error parsing catchup days: {}, channel: {}", daysStr, c.getName());
+                }
+            }
+
+            String xmltvId = xmltvCh == null ? null : xmltvCh.getId();
+            if (xmltvId != null) {
+                String newId = xmltvIds.get(xmltvId);
+                if (newId == null) {
+                    newId = prev == null ? null : prev.xmltvIds.get(xmltvId);
+                    if (newId == null) {
+                        newId = md5.digest(sg.name + '-' + xmltvId);
                     }
-                });
+                    xmltvIds.put(xmltvId, newId);
+                    xmltvChannels.add(new XmltvChannel().setId(newId));
+                }
+                xmltvId = newId;
             }
+
+            return new ChannelSpec(c.getName(), logo, c.getGroups(), xmltvId, days);
         }
 
-        xmltvData = XmltvUtils.writeXmltv(newXmltv);
-        channels = chs;
-        serverChannelsByUrl = byUrl;
+        @Override
+        public String onProgrammeStart(String channel, ZonedDateTime start, ZonedDateTime stop) {
+            if ((endOf == null || start.compareTo(endOf) < 0) && (startOf == null || stop.compareTo(startOf) > 0)) {
+                return xmltvIds.get(channel);
+            }
 
-        LOG.info("channels updated");
+            return null;
+        }
 
-        return true;
+        @Override
+        public void onProgramme(XmltvProgramme programme) throws IOException {
+            if (spool == null) {
+                spool = new XmltvSpool(cacheDir);
+            }
+
+            spool.writeProgramme(programme);
+        }
+
+        void finishSpool() throws IOException {
+            if (spool != null) {
+                spool.finish();
+            }
+        }
+
+        /**
+         * Published update is referenced by group and by running epg writers. Must be called under publish lock.
+         */
+        void retain() {
+            refs++;
+        }
+
+        /**
+         * Spool is closed when last reference is released. Must be called under publish lock.
+         */
+        void release() {
+            if (--refs == 0) {
+                close();
+            }
+        }
+
+        void close() {
+            if (spool != null) {
+                spool.close();
+                spool = null;
+            }
+        }
+    }
+
+    private CompletableFuture<InputStream> loadXmltv(IptvServerGroup sg) {
+        var f = FileLoader.tryOpenStream(sg.xmltvUrl);
+        return f != null ? f : xmltvLoader.loadIfModified(xmltvKey(sg), "xmltv: " + sg.name, HttpRequest.newBuilder().uri(URI.create(sg.xmltvUrl)).build(), defaultHttpClient);
+    }
+
+    private static String xmltvKey(IptvServerGroup sg) {
+        return sg.name;
+    }
+
+    private static String playlistKey(IptvServerGroup sg, IptvServer s) {
+        return sg.name + '|' + s.getUrl();
     }
 
-    private CompletableFuture<byte[]> loadXmltv(IptvServerGroup sg) {
-        var f = FileLoader.tryLoadBytes(sg.xmltvUrl);
-        return f != null ? f : xmltvLoader.loadAsync("xmltv: " + sg.name, sg.xmltvUrl, defaultHttpClient);
+    private CompletableFuture<Playlist> loadChannels(IptvServerGroup sg, IptvServer s) {
+        var f = FileLoader.tryOpenStream(s.getUrl());
+        if (f != null) {
+            return f.thenApplyAsync((is) -> {
+                try {
+                    return parseChannels(sg, s, is);
+                } catch (IOException e) {
+                    LOG.error("error loading m3u: {}, {}", s.getUrl(), e.getMessage());
+                    return null;
+                }
+            }, parserExecutor);
+        }
+
+        // playlist is parsed while downloaded, download is retried in case body can't be read
+        return channelsLoader.loadIfModified(
+                playlistKey(sg, s), "playlist: " + s.getName(), s.createRequest(s.getUrl()).build(), s.getHttpClient(),
+                (is) -> parseChannels(sg, s, is), parserExecutor
+        );
     }
 
-    private CompletableFuture<String> loadChannels(IptvServer s) {
-        var f = FileLoader.tryLoadString(s.getUrl());
-        return f != null ? f : channelsLoader.loadAsync("playlist: " + s.getName(), s.createRequest(s.getUrl()).build(), s.getHttpClient());
+    private Playlist parseChannels(IptvServerGroup sg, IptvServer s, InputStream is) throws IOException {
+        if (is == null) {
+            return null;
+        }
+
+        Playlist prev = sg.playlists.get(s);
+
+        if (channelsLoader.isNotModified(is)) {
+            if (prev == null) {
+                LOG.error("playlist not modified, but there is no previous playlist: {}", s.getUrl());
+                return null;
+            }
+
+            LOG.info("playlist not modified: {}, url: {}", sg.name, s.getUrl());
+            return new Playlist(prev.doc, prev.hash, false);
+        }
+
+        LOG.info("parsing playlist: {}, url: {}", sg.name, s.getUrl());
+
+        Digest hash = Digest.sha256();
+
+        // channels filtered by group filters are dropped by parser right away. Each playlist is filtered on its own,
+        // so channel accepted in one playlist does not keep its duplicates from groups rejected in another one
+        try (Reader r = new InputStreamReader(hash.digestStream(is), StandardCharsets.UTF_8)) {
+            M3uDoc m3u = M3uParser.parse(r, sg::acceptGroups);
+            if (m3u == null) {
+                LOG.error("error parsing m3u: {}", s.getUrl());
+                return null;
+            }
+
+            // providers without validators are sending the same content
+            byte[] h = hash.digest();
+            boolean changed = prev == null || !Arrays.equals(prev.hash, h);
+
+            LOG.info("playlist parsed: {}, channels: {}, changed: {}", s.getUrl(), m3u.getChannels().size(), changed);
+            return new Playlist(m3u, h, changed);
+        }
     }
 
     @Override
@@ -378,6 +1170,10 @@ public class IptvProxyService implements HttpHandler {
             return handleEpg(exchange);
         }
 
+        if (metricsEnabled && path.equals("metrics")) {
+            return handleMetrics(exchange);
+        }
+
         // channels
         int idx = path.indexOf('/');
         if (idx < 0) {
@@ -411,7 +1207,7 @@ public class IptvProxyService implements HttpHandler {
             user = user + ':' + proxyUser;
         }
 
-        IptvUser iu = users.computeIfAbsent(user, (u) -> new IptvUser(u, scheduler, users::remove));
+        IptvUser iu = users.computeIfAbsent(user, (u) -> new IptvUser(u, timer, users::remove));
         iu.lock();
         try {
             IptvServerChannel serverChannel = iu.getServerChannel(channel);
@@ -480,61 +1276,50 @@ public class IptvProxyService implements HttpHandler {
                 .add(Headers.CONTENT_DISPOSITION, "attachment; filename=playlist.m3u")
                 .add(HttpUtils.ACCESS_CONTROL, "*");
 
-        List<IptvChannel> chs = new ArrayList<>(channels.values());
-        chs.sort(Comparator.comparing(IptvChannel::getName));
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("#EXTM3U\n");
-
-        chs.forEach(ch -> {
-            sb.append("#EXTINF:0");
-
-            if (ch.getXmltvId() != null) {
-                sb.append(" tvg-id=\"").append(ch.getXmltvId()).append('"');
-            }
-
-            if (ch.getLogo() != null) {
-                sb.append(" tvg-logo=\"").append(ch.getLogo()).append('"');
-            }
-
-            if (ch.getCatchupDays() != 0) {
-                sb.append(" catchup=\"shift\" catchup-days=\"").append(ch.getCatchupDays()).append('"');
-            }
+        // playlist depends only on channels, base url and user token
+        M3uTemplate template = m3uTemplate;
+        String baseUrlStr = baseUrl.getBaseUrl(exchange);
+        boolean gzip = HttpUtils.acceptsGzip(exchange);
 
-            sb.append(',').append(ch.getName()).append("\n");
+        exchange.getResponseHeaders().put(Headers.VARY, "Accept-Encoding");
 
-            if (ch.getGroups().size() > 0) {
-                sb.append("#EXTGRP:").append(String.join(";", ch.getGroups())).append("\n");
-            }
+        String etag = '"' + Digest.md5(template.getModified() + "|" + baseUrlStr + "|" + token) + (gzip ? "-gzip" : "") + '"';
+        if (HttpUtils.sendNotModified(exchange, etag, template.getModified())) {
+            return true;
+        }
 
-            sb.append(baseUrl.getBaseUrl(exchange))
-                    .append('/')
-                    .append(ch.getId())
-                    .append("/channel.m3u8?")
-                    .append(TOKEN_TAG)
-                    .append("=")
-                    .append(token)
-                    .append("\n");
-        });
+        byte[] data;
+        if (gzip) {
+            data = template.renderGzip(baseUrlStr, token);
+            exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, "gzip");
+        } else {
+            data = template.render(baseUrlStr, token);
+        }
 
-        exchange.getResponseSender().send(sb.toString());
+        exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, Integer.toString(data.length));
+        exchange.getResponseSender().send(ByteBuffer.wrap(data));
 
         return true;
     }
 
     private boolean handleEpg(HttpServerExchange exchange) {
-        byte[] epg = xmltvData;
+        HttpContent epg = xmltvData;
         if (epg == null) {
             return false;
         }
 
         exchange.getResponseHeaders()
                 .add(Headers.CONTENT_TYPE, "application/octet-stream")
-                .add(Headers.CONTENT_DISPOSITION, "attachment; filename=epg.xml.gz")
-                .add(Headers.CONTENT_LENGTH, Integer.toString(epg.length));
+                .add(Headers.CONTENT_DISPOSITION, "attachment; filename=epg.xml.gz");
+
+        epg.send(exchange);
 
-        exchange.getResponseSender().send(ByteBuffer.wrap(epg));
+        return true;
+    }
 
+    private boolean handleMetrics(HttpServerExchange exchange) {
+        exchange.getResponseHeaders().add(Headers.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+        exchange.getResponseSender().send(metrics.render());
         return true;
     }
 }
@@ -17,18 +17,25 @@ public class IptvServer {
 
     private final HttpClient httpClient;
 
+    private final IptvMetrics.Server metrics;
+
     private int acquired;
 
-    public IptvServer(IptvServerConfig sc, IptvConnectionConfig cc, HttpClient httpClient) {
+    public IptvServer(IptvServerConfig sc, IptvConnectionConfig cc, HttpClient httpClient, IptvMetrics.Server metrics) {
         this.sc = Objects.requireNonNull(sc);
         this.cc = Objects.requireNonNull(cc);
         this.httpClient = Objects.requireNonNull(httpClient);
+        this.metrics = Objects.requireNonNull(metrics);
     }
 
     public HttpClient getHttpClient() {
         return httpClient;
     }
 
+    public IptvMetrics.Server getMetrics() {
+        return metrics;
+    }
+
     public String getName() {
         return sc.getName();
     }
@@ -81,6 +88,10 @@ public class IptvServer {
         return sc.getStreamReadTimeoutMs();
     }
 
+    public boolean getShareConnections() {
+        return sc.getShareConnections();
+    }
+
     public synchronized boolean acquire() {
         if (acquired >= cc.getMaxConnections()) {
             return false;
@@ -90,6 +101,10 @@ public class IptvServer {
         return true;
     }
 
+    public synchronized int getAcquired() {
+        return acquired;
+    }
+
     public synchronized void release() {
         if (acquired > 0) {
             acquired--;
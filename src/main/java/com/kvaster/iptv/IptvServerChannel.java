@@ -1,6 +1,5 @@
 package com.kvaster.iptv;
 
-import java.math.BigDecimal;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -9,6 +8,7 @@ import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -18,11 +18,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeUnit;
 
-import com.kvaster.utils.digest.Digest;
+import com.kvaster.utils.timer.HashedWheelTimer;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.util.Headers;
 import io.undertow.util.HttpString;
@@ -34,9 +35,6 @@ import org.slf4j.LoggerFactory;
 public class IptvServerChannel {
     private static final Logger LOG = LoggerFactory.getLogger(IptvServerChannel.class);
 
-    private static final String TAG_EXTINF = "#EXTINF:";
-    private static final String TAG_TARGET_DURATION = "#EXT-X-TARGETDURATION:";
-
     private final IptvServer server;
     private final String channelUrl;
     private final BaseUrl baseUrl;
@@ -45,7 +43,11 @@ public class IptvServerChannel {
 
     private final HttpClient httpClient;
 
-    private final ScheduledExecutorService scheduler;
+    private final IptvMetrics.Server metrics;
+
+    private final HashedWheelTimer timer;
+    private final SegmentCache segmentCache;
+    private final StreamBufferLimits bufferLimits;
 
     private volatile long failedUntil;
 
@@ -54,11 +56,11 @@ public class IptvServerChannel {
 
     private final boolean isHls;
 
-    private static class Stream {
-        String path;
-        String url;
-        String header;
-        long durationMillis;
+    static class Stream {
+        final String path;
+        final String url;
+        final String header;
+        final long durationMillis;
 
         Stream(String path, String url, String header, long durationMillis) {
             this.path = path;
@@ -73,9 +75,43 @@ public class IptvServerChannel {
         }
     }
 
-    private static class Streams {
+    static class Streams {
         List<Stream> streams = new ArrayList<>();
+        Map<String, Stream> streamMap = new HashMap<>();
         long maxDuration = 0;
+        // playlist is finished (#EXT-X-ENDLIST) and will not change anymore
+        boolean isEnded;
+
+        // rendered playlists by user token, streams are not changed after load
+        final Map<String, RenderedStreams> rendered = new ConcurrentHashMap<>();
+
+        byte[] render(String baseUrl, String token) {
+            RenderedStreams r = rendered.get(token);
+            if (r == null || !r.baseUrl.equals(baseUrl)) {
+                StringBuilder sb = new StringBuilder();
+
+                streams.forEach(s -> sb
+                        .append(s.header)
+                        .append(baseUrl)
+                        .append('/').append(s.path).append("?t=").append(token).append("\n")
+                );
+
+                r = new RenderedStreams(baseUrl, sb.toString().getBytes(StandardCharsets.UTF_8));
+                rendered.put(token, r);
+            }
+
+            return r.data;
+        }
+    }
+
+    private static class RenderedStreams {
+        final String baseUrl;
+        final byte[] data;
+
+        RenderedStreams(String baseUrl, byte[] data) {
+            this.baseUrl = baseUrl;
+            this.data = data;
+        }
     }
 
     private interface StreamsConsumer {
@@ -83,7 +119,6 @@ public class IptvServerChannel {
     }
 
     private static class UserStreams {
-        List<StreamsConsumer> consumers = new ArrayList<>();
         Map<String, Stream> streamMap = new HashMap<>();
         long maxDuration; // corresponds to current streamMap
         long infoTimeout;
@@ -94,15 +129,206 @@ public class IptvServerChannel {
             this.infoTimeout = infoTimeout;
             this.channelUrl = channelUrl;
         }
+    }
+
+    private final Map<String, UserStreams> userStreams = new ConcurrentHashMap<>();
+
+    // users sharing one server connection (share_connections mode)
+    private final Set<String> sessionUsers = new HashSet<>();
+
+    /**
+     * Playlist poller - single upstream playlist reloader shared by all users watching same channel url.
+     * Playlist is reloaded every target duration while there are clients requesting it,
+     * so clients are served from latest loaded playlist.
+     */
+    private class InfoPoller {
+        final String key;
+        final boolean isCatchup;
+        // user to pass to next iptv-proxy, poller is not shared between users in this case
+        final IptvUser user;
+
+        // all fields below are guarded by poller
+        String url;
+        Streams streams;
+        long loadTime;
+        long lastAccess;
+        boolean loading;
+        List<StreamsConsumer> consumers = new ArrayList<>();
+        HashedWheelTimer.Timeout pollTimeout;
+
+        // used only by active load
+        final HlsRewriter rewriter = new HlsRewriter();
+
+        InfoPoller(String key, String url, boolean isCatchup, IptvUser user) {
+            this.key = key;
+            this.url = url;
+            this.isCatchup = isCatchup;
+            this.user = user;
+        }
+
+        synchronized void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+
+        synchronized boolean isIdle() {
+            return System.currentTimeMillis() - lastAccess > idleTimeout();
+        }
+
+        private long idleTimeout() {
+            return calculateTimeout(streams == null ? 0 : streams.maxDuration);
+        }
+
+        private boolean isFresh() {
+            return streams != null &&
+                    (streams.isEnded || System.currentTimeMillis() - loadTime < streams.maxDuration);
+        }
+
+        void request(StreamsConsumer consumer) {
+            Streams s = null;
+            boolean startReq = false;
+
+            synchronized (this) {
+                if (isFresh()) {
+                    s = streams;
+                } else {
+                    consumers.add(consumer);
+                    if (!loading) {
+                        loading = true;
+                        startReq = true;
+                    }
+                }
+            }
+
+            if (s != null) {
+                consumer.onInfo(s, -1, 0);
+            } else if (startReq) {
+                load(RequestCounter.next(), 0, System.currentTimeMillis() + totalTimeout());
+            }
+        }
+
+        private void poll() {
+            // idle check is done under map lock to not race with new requests
+            if (pollers.computeIfPresent(key, (k, p) -> p == this && isIdle() ? null : p) != this) {
+                LOG.debug("[{}] poller stopped: {}", channelName, url);
+                return;
+            }
+
+            synchronized (this) {
+                if (loading) {
+                    // next poll will be scheduled by active load
+                    return;
+                }
+
+                if (streams == null || streams.isEnded) {
+                    // nothing to reload, just wait for clients to go away
+                    schedulePoll(idleTimeout());
+                    return;
+                }
+
+                loading = true;
+            }
+
+            load(RequestCounter.next(), 0, System.currentTimeMillis() + totalTimeout());
+        }
+
+        private synchronized void schedulePoll(long delay) {
+            // keep only one poll chain per poller
+            if (pollTimeout != null) {
+                pollTimeout.cancel();
+            }
+
+            pollTimeout = timer.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+        }
 
-        List<StreamsConsumer> getAndClearConsumers() {
+        private long totalTimeout() {
+            return isCatchup ? server.getCatchupTotalTimeoutMs() : server.getInfoTotalTimeoutMs();
+        }
+
+        private synchronized String getUrl() {
+            return url;
+        }
+
+        private synchronized List<StreamsConsumer> getAndClearConsumers() {
             var c = consumers;
             consumers = new ArrayList<>();
             return c;
         }
+
+        private void load(String rid, int retryNo, long expireTime) {
+            String url = getUrl();
+
+            LOG.info("{}[{}] loading channel: {}, url: {}, retry: {}", rid, user == null ? "*" : user.getId(), channelName, url, retryNo);
+
+            long timeout = isCatchup ? server.getCatchupTimeoutMs() : server.getInfoTimeoutMs();
+            timeout = Math.min(Math.max(100, expireTime - System.currentTimeMillis()), timeout);
+
+            final long startNanos = System.nanoTime();
+            httpClient.sendAsync(createRequest(url, user), HttpResponse.BodyHandlers.ofString())
+                    .orTimeout(timeout, TimeUnit.MILLISECONDS)
+                    .whenComplete((resp, err) -> {
+                        metrics.infoLoad.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+
+                        if (HttpUtils.isOk(resp, err, rid, startNanos)) {
+                            Streams streams = new Streams();
+
+                            String nestedUrl = rewriter.rewrite(url, resp.body(), streams);
+                            if (nestedUrl != null) {
+                                synchronized (this) {
+                                    this.url = nestedUrl;
+                                }
+                                load(rid, retryNo, expireTime);
+                                return;
+                            }
+
+                            List<StreamsConsumer> cs;
+
+                            synchronized (this) {
+                                this.streams = streams;
+                                loadTime = System.currentTimeMillis();
+                                loading = false;
+                                cs = getAndClearConsumers();
+
+                                schedulePoll(streams.isEnded || streams.maxDuration == 0 ? idleTimeout() : streams.maxDuration);
+                            }
+
+                            cs.forEach(c -> c.onInfo(streams, -1, retryNo));
+                        } else {
+                            if (System.currentTimeMillis() < expireTime) {
+                                LOG.info("{}[{}] will retry", rid, channelName);
+                                metrics.infoRetries.inc();
+
+                                timer.schedule(
+                                        () -> load(rid, retryNo + 1, expireTime),
+                                        isCatchup ? server.getCatchupRetryDelayMs() : server.getInfoRetryDelayMs(),
+                                        TimeUnit.MILLISECONDS
+                                );
+                            } else {
+                                List<StreamsConsumer> cs;
+
+                                synchronized (this) {
+                                    // drop stale playlist - next request will load it again
+                                    streams = null;
+                                    loading = false;
+                                    cs = getAndClearConsumers();
+
+                                    schedulePoll(idleTimeout());
+                                }
+
+                                if (!cs.isEmpty() && server.getChannelFailedMs() > 0) {
+                                    LOG.warn("{}[{}] channel failed", rid, channelName);
+                                    failedUntil = System.currentTimeMillis() + server.getChannelFailedMs();
+                                    metrics.channelFailed.inc();
+                                }
+
+                                int statusCode = resp == null ? HttpURLConnection.HTTP_INTERNAL_ERROR : resp.statusCode();
+                                cs.forEach(c -> c.onInfo(null, statusCode, retryNo));
+                            }
+                        }
+                    });
+        }
     }
 
-    private final Map<String, UserStreams> userStreams = new ConcurrentHashMap<>();
+    private final Map<String, InfoPoller> pollers = new ConcurrentHashMap<>();
 
     private static final Set<String> HEADERS = new HashSet<>(Arrays.asList(
         "content-type",
@@ -120,7 +346,8 @@ public class IptvServerChannel {
 
     public IptvServerChannel(
             IptvServer server, String channelUrl, BaseUrl baseUrl,
-            String channelId, String channelName, ScheduledExecutorService scheduler
+            String channelId, String channelName, HashedWheelTimer timer, SegmentCache segmentCache,
+            StreamBufferLimits bufferLimits
     ) {
         this.server = server;
         this.channelUrl = channelUrl;
@@ -129,8 +356,11 @@ public class IptvServerChannel {
         this.channelName = channelName;
 
         this.httpClient = server.getHttpClient();
+        this.metrics = server.getMetrics();
 
-        this.scheduler = scheduler;
+        this.timer = timer;
+        this.segmentCache = segmentCache;
+        this.bufferLimits = bufferLimits;
 
         defaultInfoTimeout = Math.max(server.getInfoTotalTimeoutMs(), server.getInfoTimeoutMs()) + TimeUnit.SECONDS.toMillis(1);
         defaultCatchupTimeout = Math.max(server.getCatchupTotalTimeoutMs(), server.getCatchupTimeoutMs()) + TimeUnit.SECONDS.toMillis(1);
@@ -148,6 +378,14 @@ public class IptvServerChannel {
         return "[name: " + channelName + ", server: " + server.getName() + "]";
     }
 
+    public IptvServer getServer() {
+        return server;
+    }
+
+    public String getChannelUrl() {
+        return channelUrl;
+    }
+
     public String getChannelId() {
         return channelId;
     }
@@ -157,6 +395,19 @@ public class IptvServerChannel {
             return false;
         }
 
+        if (server.getShareConnections()) {
+            synchronized (sessionUsers) {
+                // first user holds server connection for all users of this channel
+                if (!sessionUsers.isEmpty() || server.acquire()) {
+                    sessionUsers.add(userId);
+                    LOG.info("[{}] channel acquired: {} / {}, users: {}", userId, channelName, server.getName(), sessionUsers.size());
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
         if (server.acquire()) {
             LOG.info("[{}] channel acquired: {} / {}", userId, channelName, server.getName());
             return true;
@@ -165,9 +416,38 @@ public class IptvServerChannel {
         return false;
     }
 
+    /**
+     * Join already active upstream session. Connection is not acquired in this case.
+     */
+    public boolean join(String userId) {
+        if (!server.getShareConnections() || System.currentTimeMillis() < failedUntil) {
+            return false;
+        }
+
+        synchronized (sessionUsers) {
+            if (sessionUsers.isEmpty()) {
+                return false;
+            }
+
+            sessionUsers.add(userId);
+            LOG.info("[{}] channel joined: {} / {}, users: {}", userId, channelName, server.getName(), sessionUsers.size());
+            return true;
+        }
+    }
+
     public void release(String userId) {
-        LOG.info("[{}] channel released: {} / {}", userId, channelName, server.getName());
-        server.release();
+        if (server.getShareConnections()) {
+            synchronized (sessionUsers) {
+                // last user releases server connection
+                if (sessionUsers.remove(userId) && sessionUsers.isEmpty()) {
+                    server.release();
+                }
+                LOG.info("[{}] channel released: {} / {}, users: {}", userId, channelName, server.getName(), sessionUsers.size());
+            }
+        } else {
+            LOG.info("[{}] channel released: {} / {}", userId, channelName, server.getName());
+            server.release();
+        }
 
         userStreams.remove(userId);
     }
@@ -212,7 +492,7 @@ public class IptvServerChannel {
             final String rid = RequestCounter.next();
             LOG.info("{}[{}] stream: {}", rid, user.getId(), channelUrl);
 
-            runStream(rid, exchange, user, channelUrl, TimeUnit.SECONDS.toMillis(1));
+            runStream(rid, exchange, user, channelUrl, TimeUnit.SECONDS.toMillis(1), false);
 
             return true;
         } else {
@@ -235,14 +515,14 @@ public class IptvServerChannel {
                 long timeout = calculateTimeout(us.maxDuration);
                 user.setExpireTime(System.currentTimeMillis() + timeout);
 
-                runStream(rid, exchange, user, stream.url, timeout);
+                runStream(rid, exchange, user, stream.url, timeout, true);
 
                 return true;
             }
         }
     }
 
-    private void runStream(String rid, HttpServerExchange exchange, IptvUser user, String url, long timeout) {
+    private void runStream(String rid, HttpServerExchange exchange, IptvUser user, String url, long timeout, boolean isSegment) {
         if (!server.getProxyStream()) {
             LOG.info("{}redirecting stream to direct url", rid);
             exchange.setStatusCode(StatusCodes.FOUND);
@@ -257,40 +537,83 @@ public class IptvServerChannel {
         exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
             long startNanos = System.nanoTime();
 
-            // configure buffering according to undertow buffers settings for best performance
-            httpClient.sendAsync(createRequest(url, user), HttpResponse.BodyHandlers.ofPublisher())
-                    .orTimeout(server.getStreamStartTimeoutMs(), TimeUnit.MILLISECONDS)
-                    .whenComplete((resp, err) -> {
-                        if (HttpUtils.isOk(resp, err, exchange, rid, startNanos)) {
-                            resp.headers().map().forEach((name, values) -> {
-                                if (HEADERS.contains(name.toLowerCase())) {
-                                    exchange.getResponseHeaders().addAll(new HttpString(name), values);
-                                }
-                            });
-
-                            exchange.getResponseHeaders().add(HttpUtils.ACCESS_CONTROL, "*");
+            // only hls segments are shared between viewers, continuous streams are always proxied directly
+            // segments are shared only between users with same upstream request
+            String key = server.getSendUser() ? user.getId() + '|' + url : url;
+            SegmentCache.Segment segment = isSegment && segmentCache != null ? segmentCache.get(key, () -> sendStreamRequest(url, user)) : null;
 
-                            long readTimeoutMs = server.getStreamReadTimeoutMs();
-                            resp.body().subscribe(new IptvStream(exchange, rid, user, Math.max(timeout, readTimeoutMs), readTimeoutMs, scheduler, startNanos));
-                        }
-                    });
+            if (segment != null) {
+                segment.getResponse().whenComplete((resp, err) -> startStream(rid, exchange, user, timeout, startNanos, true, resp, err, segment));
+            } else {
+                sendStreamRequest(url, user).whenComplete((resp, err) -> startStream(rid, exchange, user, timeout, startNanos, isSegment, resp, err, resp == null ? null : resp.body()));
+            }
         });
     }
 
+    private CompletableFuture<HttpResponse<Flow.Publisher<List<ByteBuffer>>>> sendStreamRequest(String url, IptvUser user) {
+        // configure buffering according to undertow buffers settings for best performance
+        return httpClient.sendAsync(createRequest(url, user), HttpResponse.BodyHandlers.ofPublisher())
+                .orTimeout(server.getStreamStartTimeoutMs(), TimeUnit.MILLISECONDS);
+    }
+
+    private void startStream(
+            String rid, HttpServerExchange exchange, IptvUser user, long timeout, long startNanos, boolean isSegment,
+            HttpResponse<?> resp, Throwable err, Flow.Publisher<List<ByteBuffer>> body
+    ) {
+        (isSegment ? metrics.segmentStart : metrics.streamStart).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+
+        if (HttpUtils.isOk(resp, err, exchange, rid, startNanos)) {
+            metrics.streams.inc();
+
+            resp.headers().map().forEach((name, values) -> {
+                if (HEADERS.contains(name.toLowerCase())) {
+                    exchange.getResponseHeaders().addAll(new HttpString(name), values);
+                }
+            });
+
+            exchange.getResponseHeaders().add(HttpUtils.ACCESS_CONTROL, "*");
+
+            long readTimeoutMs = server.getStreamReadTimeoutMs();
+            body.subscribe(new IptvStream(exchange, rid, user, Math.max(timeout, readTimeoutMs), readTimeoutMs, timer, bufferLimits,
+                    metrics, isSegment ? metrics.segmentTransfer : null, startNanos
+            ));
+        }
+    }
+
     private void handleInfo(HttpServerExchange exchange, IptvUser user, String token) {
         UserStreams us = createUserStreams(exchange, user);
 
         // we'll wait maximum one second for stream download start after loading info
         user.setExpireTime(System.currentTimeMillis() + us.infoTimeout);
 
+        // playlist is shared between users unless we should pass user to next iptv-proxy
+        IptvUser pollerUser = server.getSendUser() ? user : null;
+        String key = pollerUser == null ? us.channelUrl : pollerUser.getId() + '|' + us.channelUrl;
+        InfoPoller poller = pollers.compute(key, (k, p) -> {
+            if (p == null) {
+                p = new InfoPoller(k, us.channelUrl, us.isCatchup, pollerUser);
+            }
+            p.touch();
+            return p;
+        });
+
         exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
             String rid = RequestCounter.next();
             LOG.info("{}[{}] channel: {}, url: {}", rid, user.getId(), channelName, us.channelUrl);
             long startNanos = System.nanoTime();
-            loadCachedInfo((streams, statusCode, retryNo) -> {
+            poller.request((streams, statusCode, retryNo) -> {
                 if (streams == null) {
                     LOG.warn("{}[{}] error loading streams info: {}, retries: {}", rid, user.getId(), statusCode, retryNo);
 
+                    if (server.getChannelFailedMs() > 0) {
+                        user.lock();
+                        try {
+                            user.releaseChannel();
+                        } finally {
+                            user.unlock();
+                        }
+                    }
+
                     exchange.setStatusCode(statusCode);
                     exchange.getResponseSender().send("error");
                 } else {
@@ -301,176 +624,32 @@ public class IptvServerChannel {
                         LOG.info("{}[{}] channel success: {}ms, retries: {}", rid, user.getId(), duration, retryNo);
                     }
 
-                    StringBuilder sb = new StringBuilder();
+                    user.lock();
+                    try {
+                        // user may request only streams from the playlist it has received
+                        us.streamMap = streams.streamMap;
+                        us.maxDuration = streams.maxDuration;
 
-                    streams.streams.forEach(s -> sb
-                            .append(s.header)
-                            .append(baseUrl.getBaseUrl(exchange))
-                            .append('/').append(s.path).append("?t=").append(token).append("\n")
-                    );
+                        us.infoTimeout = calculateTimeout(us.maxDuration);
+                        user.setExpireTime(System.currentTimeMillis() + us.infoTimeout);
+                    } finally {
+                        user.unlock();
+                    }
+
+                    // same playlist is polled by client until next reload
+                    byte[] data = streams.render(baseUrl.getBaseUrl(exchange), token);
 
                     exchange.setStatusCode(HttpURLConnection.HTTP_OK);
                     exchange.getResponseHeaders()
                             .add(Headers.CONTENT_TYPE, "application/x-mpegUrl")
                             .add(HttpUtils.ACCESS_CONTROL, "*");
-                    exchange.getResponseSender().send(sb.toString());
+                    exchange.getResponseSender().send(ByteBuffer.wrap(data));
                     exchange.endExchange();
                 }
-            }, user, us);
+            });
         });
     }
 
-    private void loadCachedInfo(StreamsConsumer consumer, IptvUser user, UserStreams us) {
-        boolean startReq;
-
-        user.lock();
-        try {
-            startReq = us.consumers.size() == 0;
-            us.consumers.add(consumer);
-        } finally {
-            user.unlock();
-        }
-
-        if (startReq) {
-            loadInfo(
-                    RequestCounter.next(),
-                    0,
-                    System.currentTimeMillis() + (us.isCatchup ? server.getCatchupTotalTimeoutMs() : server.getInfoTotalTimeoutMs()),
-                    user,
-                    us
-            );
-        }
-    }
-
-    private void loadInfo(String rid, int retryNo, long expireTime, IptvUser user, UserStreams us) {
-        LOG.info("{}[{}] loading channel: {}, url: {}, retry: {}", rid, user.getId(), channelName, us.channelUrl, retryNo);
-
-        long timeout = us.isCatchup ? server.getCatchupTimeoutMs() : server.getInfoTimeoutMs();
-        timeout = Math.min(Math.max(100, expireTime - System.currentTimeMillis()), timeout);
-
-        final long startNanos = System.nanoTime();
-        httpClient.sendAsync(createRequest(us.channelUrl, user), HttpResponse.BodyHandlers.ofString())
-                .orTimeout(timeout, TimeUnit.MILLISECONDS)
-                .whenComplete((resp, err) -> {
-                    if (HttpUtils.isOk(resp, err, rid, startNanos)) {
-                        String[] info = resp.body().split("\n");
-
-                        Digest digest = Digest.sha256();
-                        StringBuilder sb = new StringBuilder();
-
-                        Map<String, Stream> streamMap = new HashMap<>();
-                        Streams streams = new Streams();
-
-                        long durationMillis = 0;
-
-                        for (String l : info) {
-                            l = l.trim();
-
-                            if (l.startsWith("#")) {
-                                if (l.startsWith(TAG_EXTINF)) {
-                                    String v = l.substring(TAG_EXTINF.length());
-                                    int idx = v.indexOf(',');
-                                    if (idx >= 0) {
-                                        v = v.substring(0, idx);
-                                    }
-
-                                    try {
-                                        durationMillis = new BigDecimal(v).multiply(new BigDecimal(1000)).longValue();
-                                        streams.maxDuration = Math.max(streams.maxDuration, durationMillis);
-                                    } catch (NumberFormatException e) {
-                                        // do nothing
-                                    }
-                                } else if (l.startsWith(TAG_TARGET_DURATION)) {
-                                    try {
-                                        long targetDuration = new BigDecimal(l.substring(TAG_TARGET_DURATION.length())).multiply(new BigDecimal(1000)).longValue();
-                                        streams.maxDuration = Math.max(streams.maxDuration, targetDuration);
-                                    } catch (NumberFormatException e) {
-                                        // do nothing
-                                    }
-                                }
-
-                                sb.append(l).append("\n");
-                            } else {
-                                // transform url
-                                if (!l.startsWith("http://") && !l.startsWith("https://")) {
-                                    int idx = channelUrl.lastIndexOf('/');
-                                    if (idx >= 0) {
-                                        l = channelUrl.substring(0, idx + 1) + l;
-                                    }
-                                }
-
-                                try {
-                                    URI streamUri = new URI(l);
-                                    // we need to redownload m3u8 if m3u8 is found insteadof .ts streams
-                                    if (streamUri.getPath().endsWith(".m3u8") || streamUri.getPath().endsWith(".m3u")) {
-                                        URI baseUri = new URI(us.channelUrl);
-                                        us.channelUrl = baseUri.resolve(streamUri).toString();
-                                        loadInfo(rid, retryNo, expireTime, user, us);
-                                        return;
-                                    }
-                                } catch (URISyntaxException e) {
-                                    // probably we need to just skip this ?
-                                    LOG.trace("error parsing stream url", e);
-                                }
-
-
-                                String path = digest.digest(l) + ".ts";
-                                Stream s = new Stream(path, l, sb.toString(), durationMillis);
-                                streamMap.put(path, s);
-                                streams.streams.add(s);
-
-                                sb = new StringBuilder();
-
-                                durationMillis = 0;
-                            }
-                        }
-
-                        List<StreamsConsumer> cs;
-
-                        user.lock();
-                        try {
-                            us.streamMap = streamMap;
-                            us.maxDuration = streams.maxDuration;
-
-                            us.infoTimeout = calculateTimeout(us.maxDuration);
-                            user.setExpireTime(System.currentTimeMillis() + us.infoTimeout);
-
-                            cs = us.getAndClearConsumers();
-                        } finally {
-                            user.unlock();
-                        }
-
-                        cs.forEach(c -> c.onInfo(streams, -1, retryNo));
-                    } else {
-                        if (System.currentTimeMillis() < expireTime) {
-                            LOG.info("{}[{}] will retry", rid, user.getId());
-
-                            scheduler.schedule(
-                                    () -> loadInfo(rid, retryNo + 1, expireTime, user, us),
-                                    us.isCatchup ? server.getCatchupRetryDelayMs() : server.getInfoRetryDelayMs(),
-                                    TimeUnit.MILLISECONDS
-                            );
-                        } else {
-                            if (server.getChannelFailedMs() > 0) {
-                                user.lock();
-                                try {
-                                    LOG.warn("{}[{}] channel failed", rid, user.getId());
-                                    failedUntil = System.currentTimeMillis() + server.getChannelFailedMs();
-                                    user.releaseChannel();
-                                } finally {
-                                    user.unlock();
-                                }
-                            } else {
-                                LOG.warn("{}[{}] streams failed", rid, user.getId());
-                            }
-
-                            int statusCode = resp == null ? HttpURLConnection.HTTP_INTERNAL_ERROR : resp.statusCode();
-                            us.getAndClearConsumers().forEach(c -> c.onInfo(null, statusCode, retryNo));
-                        }
-                    }
-                });
-    }
-
     private UserStreams createUserStreams(HttpServerExchange exchange, IptvUser user) {
         String url = createChannelUrl(exchange);
 
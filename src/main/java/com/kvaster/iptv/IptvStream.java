@@ -2,49 +2,85 @@ package com.kvaster.iptv;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Flow.Subscriber;
 import java.util.concurrent.Flow.Subscription;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.kvaster.utils.metrics.LatencyHistogram;
+import com.kvaster.utils.timer.HashedWheelTimer;
 import io.undertow.io.IoCallback;
 import io.undertow.io.Sender;
 import io.undertow.server.HttpServerExchange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xnio.IoUtils;
 
+/**
+ * Proxies upstream data to client. Upstream data is requested on demand: only few chunks are requested ahead
+ * and next chunks are requested only after data is written to client, so memory used by stream is bounded
+ * even for slow clients.
+ */
 public class IptvStream implements Subscriber<List<ByteBuffer>> {
     private static final Logger LOG = LoggerFactory.getLogger(IptvStream.class);
 
+    // upstream chunks requested ahead
+    private static final int PREFETCH = 4;
+
     private final HttpServerExchange exchange;
 
-    private final Queue<ByteBuffer> buffers = new LinkedBlockingQueue<>();
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
     private final AtomicBoolean busy = new AtomicBoolean();
 
     private volatile Subscription subscription;
 
     private final static ByteBuffer END_MARKER = ByteBuffer.allocate(0);
-    private final static List<ByteBuffer> END_ARRAY_MARKER = Collections.singletonList(END_MARKER);
+
+    // max buffers sent to client with one gathering write
+    private static final int MAX_BATCH = 64;
+
+    // accessed only by sender, i.e. while busy flag is set
+    private final List<ByteBuffer> batch = new ArrayList<>();
+    private long sendLen;
+    private boolean endPending;
+    private boolean ended;
+
+    // single send is in progress at any time, so callback is shared by all sends
+    private final IoCallback sendCallback = new SendCallback();
+    private final AtomicBoolean sendCompleted = new AtomicBoolean();
+
+    private final StreamBufferLimits limits;
+    // bytes in buffers queue and in current write
+    private final AtomicLong queued = new AtomicLong();
+    // bytes in current write, released when write is completed
+    private final AtomicLong sending = new AtomicLong();
+    // requested but not yet received chunks
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicBoolean finished = new AtomicBoolean();
 
     private final String rid;
 
     private final SpeedMeter readMeter;
     private final SpeedMeter writeMeter;
 
+    private final IptvMetrics.Server metrics;
+    // null in case transfer time is not recorded
+    private final LatencyHistogram transferTime;
+
     private final IptvUser user;
     private final long userTimeout;
 
-    private final ScheduledExecutorService scheduler;
+    private final HashedWheelTimer timer;
     private final long readTimeout;
 
     private volatile long timeoutTime;
-    private volatile ScheduledFuture<?> timeoutFuture;
+    private volatile HashedWheelTimer.Timeout timeout;
 
     private final long startNanos;
 
@@ -54,7 +90,10 @@ public class IptvStream implements Subscriber<List<ByteBuffer>> {
             IptvUser user,
             long userTimeout,
             long readTimeout,
-            ScheduledExecutorService scheduler,
+            HashedWheelTimer timer,
+            StreamBufferLimits limits,
+            IptvMetrics.Server metrics,
+            LatencyHistogram transferTime,
             long startNanos
     ) {
         this.exchange = exchange;
@@ -63,14 +102,18 @@ public class IptvStream implements Subscriber<List<ByteBuffer>> {
         this.user = user;
         this.userTimeout = userTimeout;
 
-        this.scheduler = scheduler;
+        this.timer = timer;
         this.readTimeout = readTimeout;
 
+        this.limits = limits;
+        this.metrics = metrics;
+        this.transferTime = transferTime;
+
         readMeter = new SpeedMeter(rid + "read: ", startNanos);
         writeMeter = new SpeedMeter(rid + "write: ", startNanos);
 
         updateReadTimeout();
-        timeoutFuture = scheduler.schedule(this::onTimeout, readTimeout, TimeUnit.MILLISECONDS);
+        timeout = timer.schedule(this::onTimeout, readTimeout, TimeUnit.MILLISECONDS);
 
         this.startNanos = startNanos;
     }
@@ -80,12 +123,16 @@ public class IptvStream implements Subscriber<List<ByteBuffer>> {
     }
 
     private void onTimeout() {
+        if (finished.get()) {
+            return;
+        }
+
         long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
         if (now >= timeoutTime) {
             LOG.warn("{}read timeout on loading stream", rid);
             finish();
         } else {
-            timeoutFuture = scheduler.schedule(this::onTimeout, timeoutTime - now, TimeUnit.MILLISECONDS);
+            timeout = timer.schedule(this::onTimeout, timeoutTime - now, TimeUnit.MILLISECONDS);
         }
     }
 
@@ -109,81 +156,238 @@ public class IptvStream implements Subscriber<List<ByteBuffer>> {
         }
 
         this.subscription = subscription;
-        subscription.request(Long.MAX_VALUE);
+        requestMore();
+    }
+
+    /**
+     * Requests more data from upstream unless buffer limits are exceeded. Stalled stream is resumed
+     * when buffered data is sent.
+     */
+    private void requestMore() {
+        while (!finished.get() && !limits.isExceeded(queued.get())) {
+            int o = outstanding.get();
+            if (o >= PREFETCH) {
+                return;
+            }
+
+            if (outstanding.compareAndSet(o, PREFETCH)) {
+                subscription.request(PREFETCH - o);
+                return;
+            }
+        }
     }
 
     private void finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+
         // cancel any timeouts
-        timeoutFuture.cancel(false);
+        timeout.cancel();
 
         // subscription can't be null at this place
         subscription.cancel();
 
-        onNext(END_ARRAY_MARKER);
+        // already buffered data is sent before end
+        buffers.add(END_MARKER);
+        if (busy.compareAndSet(false, true)) {
+            sendNext();
+        }
+    }
+
+    /**
+     * Drops buffered data and closes client connection. Connection must be closed - client which doesn't read
+     * data will never complete current write, so stream would never end otherwise.
+     */
+    private void disconnect() {
+        finish();
+        IoUtils.safeClose(exchange.getConnection());
+        drain();
+
+        // write callback may never be called for closed connection
+        releaseSent();
+    }
+
+    private void drain() {
+        ByteBuffer b;
+        while ((b = buffers.poll()) != null) {
+            release(b.remaining());
+        }
+    }
+
+    private void releaseSent() {
+        release(sending.getAndSet(0));
+    }
+
+    private void release(long len) {
+        if (len > 0) {
+            queued.addAndGet(-len);
+            limits.remove(len);
+        }
     }
 
     @Override
     public void onNext(List<ByteBuffer> item) {
+        outstanding.decrementAndGet();
+
         int len = 0;
         for (ByteBuffer b : item) {
             len += b.remaining();
         }
         readMeter.processed(len);
+        metrics.readBytes.add(len);
+
+        if (finished.get()) {
+            // data arrived after cancel
+            return;
+        }
 
         if (len > 0) {
             updateTimeouts();
         }
 
+        queued.addAndGet(len);
+        limits.add(len);
         buffers.addAll(item);
 
+        if (finished.get()) {
+            // stream was finished concurrently and sender may be already ended - data is dropped by sender
+            if (busy.compareAndSet(false, true)) {
+                sendNext();
+            }
+            return;
+        }
+
+        // global limit only stalls stream - other clients being slow is not a reason to disconnect this one
+        if (limits.isStreamExceeded(queued.get()) && limits.getDisconnectSlowClients()) {
+            LOG.warn("{}slow client, buffered: {} bytes, disconnecting", rid, queued.get());
+            disconnect();
+            return;
+        }
+
+        // more data is requested only when client consumes data, see SendCallback
         if (busy.compareAndSet(false, true)) {
             sendNext();
         }
-
-        subscription.request(Long.MAX_VALUE);
     }
 
     private void sendNext() {
+        do {
+            while (!ended) {
+                if (endPending) {
+                    ended = true;
+                    exchange.endExchange();
+                    writeMeter.finish();
+
+                    if (transferTime != null) {
+                        transferTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+                    }
+                    break;
+                }
+
+                ByteBuffer[] batch = pollBatch();
+                if (batch == null) {
+                    if (endPending) {
+                        continue;
+                    }
+
+                    // everything is sent, client is waiting for data
+                    requestMore();
+                    break;
+                }
+
+                if (!send(batch)) {
+                    return;
+                }
+            }
+
+            if (ended) {
+                // data queued after end is never sent
+                drain();
+            }
+
+            busy.set(false);
+
+            // data could be added after last poll and before busy flag reset
+        } while (!buffers.isEmpty() && busy.compareAndSet(false, true));
+    }
+
+    /**
+     * Takes all currently queued data buffers (but not more then MAX_BATCH) for one gathering write.
+     *
+     * @return buffers to send or null in case there is no data queued
+     */
+    private ByteBuffer[] pollBatch() {
         ByteBuffer b;
-        while ((b = buffers.poll()) != null) {
-            if (!sendNext(b)) {
-                return;
+        while (batch.size() < MAX_BATCH && (b = buffers.poll()) != null) {
+            if (b == END_MARKER) {
+                endPending = true;
+                break;
+            }
+
+            // buffer is released only after it is written
+            if (b.hasRemaining()) {
+                batch.add(b);
             }
         }
 
-        busy.set(false);
+        if (batch.isEmpty()) {
+            return null;
+        }
+
+        ByteBuffer[] result = batch.toArray(new ByteBuffer[0]);
+        batch.clear();
+        return result;
     }
 
-    private boolean sendNext(ByteBuffer b) {
+    /**
+     * @return true in case send was completed immediately and next batch could be sent
+     */
+    private boolean send(ByteBuffer[] batch) {
+        // data is going to client, so stalled upstream is not a read timeout
         updateTimeouts();
 
-        if (b == END_MARKER) {
-            exchange.endExchange();
-            writeMeter.finish();
-            return true;
+        long len = 0;
+        for (ByteBuffer b : batch) {
+            len += b.remaining();
         }
 
-        AtomicBoolean completed = new AtomicBoolean(false);
+        sendLen = len;
+        sending.set(len);
+        sendCompleted.set(false);
+        exchange.getResponseSender().send(batch, sendCallback);
 
-        final int len = b.remaining();
-        exchange.getResponseSender().send(b, new IoCallback() {
-            @Override
-            public void onComplete(HttpServerExchange exchange, Sender sender) {
-                writeMeter.processed(len);
+        return !sendCompleted.compareAndSet(false, true);
+    }
 
-                if (!completed.compareAndSet(false, true)) {
-                    sendNext();
-                }
-            }
+    private class SendCallback implements IoCallback {
+        @Override
+        public void onComplete(HttpServerExchange exchange, Sender sender) {
+            writeMeter.processed(sendLen);
+            metrics.writeBytes.add(sendLen);
+
+            // client has consumed data - request more
+            releaseSent();
+            requestMore();
 
-            @Override
-            public void onException(HttpServerExchange exchange, Sender sender, IOException exception) {
-                LOG.warn("{}error on sending stream: {}", rid, exception.getMessage());
-                finish();
+            // send was completed asynchronously - continue sending from callback
+            if (!sendCompleted.compareAndSet(false, true)) {
+                sendNext();
             }
-        });
+        }
+
+        @Override
+        public void onException(HttpServerExchange exchange, Sender sender, IOException exception) {
+            LOG.warn("{}error on sending stream: {}", rid, exception.getMessage());
+
+            // nothing can be sent anymore, sender only drops queued data
+            ended = true;
+            disconnect();
 
-        return !completed.compareAndSet(false, true);
+            if (!sendCompleted.compareAndSet(false, true)) {
+                sendNext();
+            }
+        }
     }
 
     @Override
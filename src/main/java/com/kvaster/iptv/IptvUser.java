@@ -1,12 +1,11 @@
 package com.kvaster.iptv;
 
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 
+import com.kvaster.utils.timer.HashedWheelTimer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,19 +15,19 @@ public class IptvUser {
     private final String id;
     private final Lock lock = new ReentrantLock();
 
-    private final ScheduledExecutorService scheduler;
+    private final HashedWheelTimer timer;
     private final BiConsumer<String, IptvUser> unregister;
 
     private long expireTime = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(1);
 
     private long timeoutTime;
-    private ScheduledFuture<?> timeoutFuture;
+    private HashedWheelTimer.Timeout timeout;
 
     private volatile IptvServerChannel serverChannel;
 
-    public IptvUser(String id, ScheduledExecutorService scheduler, BiConsumer<String, IptvUser> unregister) {
+    public IptvUser(String id, HashedWheelTimer timer, BiConsumer<String, IptvUser> unregister) {
         this.id = id;
-        this.scheduler = scheduler;
+        this.timer = timer;
         this.unregister = unregister;
 
         LOG.info("[{}] user created", id);
@@ -39,7 +38,7 @@ public class IptvUser {
     }
 
     public void unlock() {
-        // small optimization to have less removes and Future recreates in priority queue
+        // small optimization to have less timeout recreates
         if (timeoutTime == 0 || timeoutTime > expireTime) {
             schedule();
         }
@@ -48,12 +47,12 @@ public class IptvUser {
     }
 
     private void schedule() {
-        if (timeoutFuture != null) {
-            timeoutFuture.cancel(false);
+        if (timeout != null) {
+            timeout.cancel();
         }
 
         // 100ms jitter
-        timeoutFuture = scheduler.schedule(this::removeIfNeed, expireDelay() + 100, TimeUnit.MILLISECONDS);
+        timeout = timer.schedule(this::removeIfNeed, expireDelay() + 100, TimeUnit.MILLISECONDS);
         timeoutTime = expireTime;
     }
 
@@ -0,0 +1,147 @@
+package com.kvaster.iptv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Playlist rendered once per channels change. Only base url and user token differ between requests,
+ * so playlist is kept as byte fragments and these values are spliced in per request.
+ */
+public class M3uTemplate {
+    private static final byte[] HEADER = "#EXTM3U\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte NEW_LINE = '\n';
+
+    // min size of compressed playlists cache, it is used for anonymous users too
+    public static final int MIN_GZIP_CACHE_SIZE = 16;
+
+    private final long modified;
+
+    // for each channel: text before base url and path between base url and token
+    private final byte[][] heads;
+    private final byte[][] paths;
+    private final int fixedLength;
+
+    // compressed playlists for most recent users, map lock is never held while compressing
+    private final Map<String, byte[]> gzipCache;
+
+    /**
+     * @param gzipCacheSize compressed playlists kept in cache, should be not less than users count
+     */
+    public M3uTemplate(Collection<IptvChannel> channels, String tokenTag, long modified, int gzipCacheSize) {
+        this.modified = modified;
+
+        gzipCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > gzipCacheSize;
+            }
+        });
+
+        List<IptvChannel> chs = new ArrayList<>(channels);
+        chs.sort(Comparator.comparing(IptvChannel::getName));
+
+        heads = new byte[chs.size()][];
+        paths = new byte[chs.size()][];
+
+        int len = HEADER.length;
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < chs.size(); i++) {
+            IptvChannel ch = chs.get(i);
+
+            sb.setLength(0);
+            sb.append("#EXTINF:0");
+
+            if (ch.getXmltvId() != null) {
+                sb.append(" tvg-id=\"").append(ch.getXmltvId()).append('"');
+            }
+
+            if (ch.getLogo() != null) {
+                sb.append(" tvg-logo=\"").append(ch.getLogo()).append('"');
+            }
+
+            if (ch.getCatchupDays() != 0) {
+                sb.append(" catchup=\"shift\" catchup-days=\"").append(ch.getCatchupDays()).append('"');
+            }
+
+            sb.append(',').append(ch.getName()).append("\n");
+
+            if (ch.getGroups().size() > 0) {
+                sb.append("#EXTGRP:").append(String.join(";", ch.getGroups())).append("\n");
+            }
+
+            heads[i] = sb.toString().getBytes(StandardCharsets.UTF_8);
+            paths[i] = ('/' + ch.getId() + "/channel.m3u8?" + tokenTag + '=').getBytes(StandardCharsets.UTF_8);
+
+            len += heads[i].length + paths[i].length + 1;
+        }
+
+        fixedLength = len;
+    }
+
+    /**
+     * @return time of channels change, unique for each change
+     */
+    public long getModified() {
+        return modified;
+    }
+
+    public byte[] render(String baseUrl, String token) {
+        byte[] base = baseUrl.getBytes(StandardCharsets.UTF_8);
+        byte[] tok = token.getBytes(StandardCharsets.UTF_8);
+
+        byte[] data = new byte[fixedLength + heads.length * (base.length + tok.length)];
+
+        int pos = put(data, 0, HEADER);
+        for (int i = 0; i < heads.length; i++) {
+            pos = put(data, pos, heads[i]);
+            pos = put(data, pos, base);
+            pos = put(data, pos, paths[i]);
+            pos = put(data, pos, tok);
+            data[pos++] = NEW_LINE;
+        }
+
+        return data;
+    }
+
+    public byte[] renderGzip(String baseUrl, String token) {
+        String key = baseUrl + '|' + token;
+
+        byte[] data = gzipCache.get(key);
+        if (data == null) {
+            // concurrent requests of same user may compress twice, but requests of other users are not blocked
+            data = gzip(render(baseUrl, token));
+            byte[] prev = gzipCache.putIfAbsent(key, data);
+            if (prev != null) {
+                data = prev;
+            }
+        }
+
+        return data;
+    }
+
+    private static int put(byte[] data, int pos, byte[] part) {
+        System.arraycopy(part, 0, data, pos, part.length);
+        return pos + part.length;
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4);
+        try (GZIPOutputStream os = new GZIPOutputStream(bos, 64 * 1024)) {
+            os.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bos.toByteArray();
+    }
+}
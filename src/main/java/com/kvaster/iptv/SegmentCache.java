@@ -0,0 +1,431 @@
+package com.kvaster.iptv;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared in-memory cache for hls segments. Segment is downloaded from upstream only once, all
+ * other viewers are joining in-flight download or are served from cached data.
+ * <p>
+ * Evicted segment data is still counted against cache size until segment download is finished and all
+ * its viewers are gone. New segments are not cached while cache is full with such segments.
+ */
+public class SegmentCache {
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentCache.class);
+
+    // max upstream chunks requested but not received yet
+    private static final int PREFETCH = 4;
+
+    private final long maxBytes;
+    private final long ttlMs;
+
+    // insertion order is also creation time order - eldest entries are first
+    private final Map<String, Segment> segments = new LinkedHashMap<>();
+    // data of cached and of evicted but still used segments
+    private long totalBytes;
+
+    public SegmentCache(long maxBytes, long ttlMs) {
+        this.maxBytes = maxBytes;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Returns segment for key. New download will be started with loader in case segment is not cached.
+     *
+     * @param key segment url, must also contain user in case upstream request depends on user
+     * @return segment or null in case cache is full and segment should be loaded without cache
+     */
+    public Segment get(String key, Supplier<CompletableFuture<HttpResponse<Flow.Publisher<List<ByteBuffer>>>>> loader) {
+        Segment segment;
+        boolean created = false;
+
+        synchronized (this) {
+            purge(System.currentTimeMillis());
+
+            segment = segments.get(key);
+            if (segment == null) {
+                if (totalBytes >= maxBytes) {
+                    LOG.debug("segment cache is full: {}", key);
+                    return null;
+                }
+
+                segment = new Segment(key);
+                segments.put(key, segment);
+                created = true;
+            }
+        }
+
+        if (created) {
+            segment.start(loader.get());
+        } else {
+            LOG.debug("segment cache hit: {}", key);
+        }
+
+        return segment;
+    }
+
+    public synchronized void purge() {
+        purge(System.currentTimeMillis());
+    }
+
+    private void purge(long now) {
+        Iterator<Segment> it = segments.values().iterator();
+        while (it.hasNext()) {
+            Segment s = it.next();
+            if (s.createdAt + ttlMs > now) {
+                break;
+            }
+
+            it.remove();
+            evicted(s);
+        }
+    }
+
+    private synchronized void onBytes(Segment segment, long len) {
+        if (segment.released) {
+            return;
+        }
+
+        segment.cachedBytes += len;
+        totalBytes += len;
+
+        Iterator<Segment> it = segments.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Segment s = it.next();
+            it.remove();
+            evicted(s);
+        }
+    }
+
+    private synchronized void remove(Segment segment) {
+        if (segments.remove(segment.key, segment)) {
+            evicted(segment);
+        }
+    }
+
+    private void evicted(Segment segment) {
+        segment.cached = false;
+        releaseUnused(segment);
+    }
+
+    /**
+     * Segment data is released when segment is not cached anymore and nobody uses it.
+     */
+    private synchronized void releaseUnused(Segment segment) {
+        if (!segment.cached && !segment.released && segment.isUnused()) {
+            segment.released = true;
+            totalBytes -= segment.cachedBytes;
+        }
+    }
+
+    public class Segment implements Flow.Publisher<List<ByteBuffer>>, Flow.Subscriber<List<ByteBuffer>> {
+        private final String key;
+        private final long createdAt = System.currentTimeMillis();
+
+        private final CompletableFuture<HttpResponse<Flow.Publisher<List<ByteBuffer>>>> response = new CompletableFuture<>();
+
+        // guarded by cache
+        private boolean cached = true;
+        private boolean released;
+        private long cachedBytes;
+
+        // guarded by segment
+        private final List<List<ByteBuffer>> chunks = new ArrayList<>();
+        private final List<Viewer> viewers = new ArrayList<>();
+        private boolean completed;
+        private Throwable error;
+        // total chunks requested from upstream
+        private long upstreamRequested;
+
+        private volatile Flow.Subscription upstream;
+
+        private Segment(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Upstream response. Response body must not be used directly - segment should be used as publisher instead.
+         */
+        public CompletableFuture<HttpResponse<Flow.Publisher<List<ByteBuffer>>>> getResponse() {
+            return response;
+        }
+
+        private void start(CompletableFuture<HttpResponse<Flow.Publisher<List<ByteBuffer>>>> f) {
+            f.whenComplete((resp, err) -> {
+                if (resp != null && resp.statusCode() == HttpURLConnection.HTTP_OK) {
+                    resp.body().subscribe(this);
+                } else {
+                    // don't cache failures - next request should retry
+                    remove(this);
+                }
+
+                if (resp == null) {
+                    response.completeExceptionally(err);
+                } else {
+                    response.complete(resp);
+                }
+            });
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super List<ByteBuffer>> subscriber) {
+            Viewer v = new Viewer(subscriber);
+
+            synchronized (this) {
+                viewers.add(v);
+            }
+
+            subscriber.onSubscribe(v);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            upstream = subscription;
+
+            // all viewers could leave before subscription - upstream was not cancelled in such case
+            boolean abort;
+            synchronized (this) {
+                abort = completed;
+            }
+
+            if (abort) {
+                subscription.cancel();
+            } else {
+                requestUpstream();
+            }
+        }
+
+        /**
+         * Upstream is read as fast as fastest viewer consumes data, but not more then PREFETCH chunks ahead
+         * of received data. Slow viewers are served from received chunks.
+         */
+        private void requestUpstream() {
+            Flow.Subscription s = upstream;
+            if (s == null) {
+                return;
+            }
+
+            long n;
+            synchronized (this) {
+                if (completed) {
+                    return;
+                }
+
+                long wanted = 0;
+                for (Viewer v : viewers) {
+                    wanted = Math.max(wanted, v.wanted());
+                }
+
+                n = Math.min(wanted, chunks.size() + PREFETCH) - upstreamRequested;
+                if (n <= 0) {
+                    return;
+                }
+
+                upstreamRequested += n;
+            }
+
+            s.request(n);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            long len = 0;
+            for (ByteBuffer b : item) {
+                len += b.remaining();
+            }
+
+            synchronized (this) {
+                if (completed) {
+                    // data arrived after cancel
+                    return;
+                }
+                chunks.add(item);
+            }
+
+            onBytes(this, len);
+
+            drainAll();
+            requestUpstream();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            synchronized (this) {
+                error = throwable;
+                completed = true;
+            }
+
+            remove(this);
+
+            drainAll();
+            releaseUnused(this);
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                completed = true;
+            }
+
+            drainAll();
+            releaseUnused(this);
+        }
+
+        private synchronized boolean isUnused() {
+            return completed && viewers.isEmpty();
+        }
+
+        private void drainAll() {
+            List<Viewer> vs;
+            synchronized (this) {
+                vs = new ArrayList<>(viewers);
+            }
+
+            vs.forEach(Viewer::drain);
+        }
+
+        private void removeViewer(Viewer v) {
+            boolean abort;
+
+            synchronized (this) {
+                viewers.remove(v);
+
+                // nobody is interested in this segment anymore, stop downloading it
+                abort = viewers.isEmpty() && !completed;
+                if (abort) {
+                    error = new IOException("segment download cancelled");
+                    completed = true;
+                }
+            }
+
+            if (abort) {
+                remove(this);
+
+                Flow.Subscription s = upstream;
+                if (s != null) {
+                    s.cancel();
+                }
+            }
+
+            releaseUnused(this);
+        }
+
+        private class Viewer implements Flow.Subscription {
+            private final Flow.Subscriber<? super List<ByteBuffer>> subscriber;
+
+            private final AtomicInteger wip = new AtomicInteger();
+            private final AtomicLong requested = new AtomicLong();
+            private volatile boolean cancelled;
+
+            // written only from drain loop
+            private volatile int next;
+
+            Viewer(Flow.Subscriber<? super List<ByteBuffer>> subscriber) {
+                this.subscriber = subscriber;
+            }
+
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancel();
+                    subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+                    return;
+                }
+
+                requested.getAndUpdate(r -> r + n < 0 ? Long.MAX_VALUE : r + n);
+                drain();
+                requestUpstream();
+            }
+
+            /**
+             * Total chunks this viewer is ready to receive.
+             */
+            long wanted() {
+                // requested is read before next - drain loop increments next before decrementing requested,
+                // so result may be only higher by one but never lower then actual value
+                long r = requested.get();
+                long w = next + r;
+                return w < 0 ? Long.MAX_VALUE : w;
+            }
+
+            @Override
+            public void cancel() {
+                if (!cancelled) {
+                    cancelled = true;
+                    removeViewer(this);
+                }
+            }
+
+            void drain() {
+                if (wip.getAndIncrement() != 0) {
+                    return;
+                }
+
+                do {
+                    while (!cancelled) {
+                        List<ByteBuffer> chunk = null;
+                        boolean done;
+                        Throwable err;
+
+                        synchronized (Segment.this) {
+                            if (next < chunks.size()) {
+                                chunk = chunks.get(next);
+                            }
+                            done = completed;
+                            err = error;
+                        }
+
+                        if (chunk != null) {
+                            if (requested.get() == 0) {
+                                break;
+                            }
+
+                            next++;
+                            requested.getAndUpdate(r -> r == Long.MAX_VALUE ? r : r - 1);
+
+                            // every viewer needs own buffer positions
+                            List<ByteBuffer> copy = new ArrayList<>(chunk.size());
+                            for (ByteBuffer b : chunk) {
+                                copy.add(b.duplicate());
+                            }
+
+                            subscriber.onNext(copy);
+                        } else {
+                            if (done) {
+                                cancelled = true;
+
+                                synchronized (Segment.this) {
+                                    viewers.remove(this);
+                                }
+                                releaseUnused(Segment.this);
+
+                                if (err == null) {
+                                    subscriber.onComplete();
+                                } else {
+                                    subscriber.onError(err);
+                                }
+                            }
+
+                            break;
+                        }
+                    }
+                } while (wip.decrementAndGet() != 0);
+            }
+        }
+    }
+}
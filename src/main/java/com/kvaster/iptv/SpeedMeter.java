@@ -35,6 +35,10 @@ public class SpeedMeter {
     }
 
     public void processed(long len) {
+        if (!LOG.isDebugEnabled()) {
+            return;
+        }
+
         if (bytes == 0) {
             LOG.debug("{}start", rid);
         }
@@ -49,6 +53,10 @@ public class SpeedMeter {
     }
 
     public void finish() {
+        if (!LOG.isDebugEnabled()) {
+            return;
+        }
+
         long now = getMonotonicMillis();
         if ((now - partTime) > 1000) {
             logPart();
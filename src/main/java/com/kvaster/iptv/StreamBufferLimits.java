@@ -0,0 +1,54 @@
+package com.kvaster.iptv;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits for stream data which is received from upstream but is not yet sent to client. Limits are reached
+ * only by slow clients - in such case stream either stops requesting data from upstream or client is disconnected.
+ */
+public class StreamBufferLimits {
+    private final long streamMaxBytes;
+    private final long totalMaxBytes;
+    private final boolean disconnectSlowClients;
+
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    public StreamBufferLimits(long streamMaxBytes, long totalMaxBytes, boolean disconnectSlowClients) {
+        this.streamMaxBytes = streamMaxBytes;
+        this.totalMaxBytes = totalMaxBytes;
+        this.disconnectSlowClients = disconnectSlowClients;
+    }
+
+    public void add(long bytes) {
+        totalBytes.addAndGet(bytes);
+    }
+
+    public void remove(long bytes) {
+        totalBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Stream without buffered data never exceeds limits, otherwise it would never be resumed.
+     *
+     * @param streamBytes data buffered by stream
+     */
+    public boolean isExceeded(long streamBytes) {
+        return streamBytes > 0 && (streamBytes >= streamMaxBytes || totalBytes.get() >= totalMaxBytes);
+    }
+
+    /**
+     * @param streamBytes data buffered by stream
+     * @return true in case stream alone exceeds its limit, i.e. client is too slow by itself
+     */
+    public boolean isStreamExceeded(long streamBytes) {
+        return streamBytes >= streamMaxBytes;
+    }
+
+    public boolean getDisconnectSlowClients() {
+        return disconnectSlowClients;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+}
@@ -22,6 +22,13 @@ public class IptvProxyConfig {
     private long xmltvTotalTimeoutSec = 120;
     private long xmltvRetryDelayMs = 1000;
     private boolean useHttp2 = false;
+    private long segmentCacheSizeMb = 0;
+    private long segmentCacheTtlSec = 60;
+    private String cacheDir;
+    private long streamBufferKb = 2048;
+    private long streamsBufferMb = 128;
+    private boolean disconnectSlowClients = false;
+    private boolean metricsEnabled = false;
 
     protected IptvProxyConfig() {
     }
@@ -86,6 +93,34 @@ public class IptvProxyConfig {
         return useHttp2;
     }
 
+    public long getSegmentCacheSizeMb() {
+        return segmentCacheSizeMb;
+    }
+
+    public long getSegmentCacheTtlSec() {
+        return segmentCacheTtlSec;
+    }
+
+    public String getCacheDir() {
+        return cacheDir;
+    }
+
+    public long getStreamBufferKb() {
+        return streamBufferKb;
+    }
+
+    public long getStreamsBufferMb() {
+        return streamsBufferMb;
+    }
+
+    public boolean getDisconnectSlowClients() {
+        return disconnectSlowClients;
+    }
+
+    public boolean getMetricsEnabled() {
+        return metricsEnabled;
+    }
+
     public static Builder newBuilder() {
         return new Builder();
     }
@@ -171,5 +206,40 @@ public class IptvProxyConfig {
             c.useHttp2 = useHttp2;
             return this;
         }
+
+        public Builder segmentCacheSizeMb(long segmentCacheSizeMb) {
+            c.segmentCacheSizeMb = segmentCacheSizeMb;
+            return this;
+        }
+
+        public Builder segmentCacheTtlSec(long segmentCacheTtlSec) {
+            c.segmentCacheTtlSec = segmentCacheTtlSec;
+            return this;
+        }
+
+        public Builder cacheDir(String cacheDir) {
+            c.cacheDir = cacheDir;
+            return this;
+        }
+
+        public Builder streamBufferKb(long streamBufferKb) {
+            c.streamBufferKb = streamBufferKb;
+            return this;
+        }
+
+        public Builder streamsBufferMb(long streamsBufferMb) {
+            c.streamsBufferMb = streamsBufferMb;
+            return this;
+        }
+
+        public Builder disconnectSlowClients(boolean disconnectSlowClients) {
+            c.disconnectSlowClients = disconnectSlowClients;
+            return this;
+        }
+
+        public Builder metricsEnabled(boolean metricsEnabled) {
+            c.metricsEnabled = metricsEnabled;
+            return this;
+        }
     }
 }
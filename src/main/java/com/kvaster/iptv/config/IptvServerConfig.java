@@ -24,6 +24,7 @@ public class IptvServerConfig {
     private long catchupRetryDelayMs = 100;
     private long streamStartTimeoutMs = 1000;
     private long streamReadTimeoutMs = 1000;
+    private boolean shareConnections;
 
     private List<Pattern> groupFilters = Collections.emptyList();
 
@@ -94,6 +95,10 @@ public class IptvServerConfig {
         return streamReadTimeoutMs;
     }
 
+    public boolean getShareConnections() {
+        return shareConnections;
+    }
+
     public List<Pattern> getGroupFilters() {
         return groupFilters;
     }
@@ -189,6 +194,11 @@ public class IptvServerConfig {
             return this;
         }
 
+        public Builder shareConnections(boolean shareConnections) {
+            c.shareConnections = shareConnections;
+            return this;
+        }
+
         public Builder groupFilters(Collection<Pattern> groupFilters) {
             c.groupFilters = new ArrayList<>(groupFilters);
             return this;
@@ -1,126 +1,400 @@
 package com.kvaster.iptv.m3u;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Single pass m3u scanner. Playlist is processed line by line without regular expressions,
+ * strings are created only for data which is actually kept.
+ * <p>
+ * Supported forms of channel info:
+ * <pre>
+ * #EXTINF:-1 tvg-id="id" group-title="group",Channel name
+ * #EXTINF:-1 tvg-id=id group-title=group,Channel name
+ * #EXTINF:10.5,Channel name
+ * #EXTINF:-1 tvg-id="id" Channel name
+ * </pre>
+ * Channel name is everything after first comma outside of quoted value. In case there is no comma
+ * text after last property is used as name.
+ */
 public class M3uParser {
     private static final Logger LOG = LoggerFactory.getLogger(M3uParser.class);
 
-    private static final Pattern TAG_PAT = Pattern.compile("#(\\w+)(?:[ :](.*))?");
-    private static final Pattern PROP_PAT = Pattern.compile(" *([\\w-_]+)=\"([^\"]*)\"(.*)");
-    private static final Pattern PROP_NONSTD_PAT = Pattern.compile(" *([\\w-_]+)=([^\"][^ ]*)(.*)");
-    private static final Pattern INFO_PAT = Pattern.compile("([-+0-9]+) ?(.*)");
-
-    public static M3uDoc parse(String content) {
-        Map<String, String> m3uProps = Collections.emptyMap();//new HashMap<>();
-        List<M3uChannel> channels = new ArrayList<>();
-
-        Set<String> groups = new HashSet<>();
-        Map<String, String> props = null;
-        String name = null;
-
-        for (String line : content.split("\n")) {
-            line = line.strip();
-
-            Matcher m;
-
-            if ((m = TAG_PAT.matcher(line)).matches()) {
-                switch (m.group(1)) {
-                    case "EXTM3U":
-                        String p = m.group(2);
-                        if (p != null) {
-                            String prop = parseProps(m.group(2), m3uProps = new HashMap<>()).strip();
-                            if (!prop.isEmpty()) {
-                                LOG.warn("malformed property: {}", prop);
-                            }
-                        }
-                        break;
+    // most common property names - avoid allocating same strings for each channel
+    private static final String[] KNOWN_KEYS = {
+            "tvg-id", "tvg-name", "tvg-logo", "tvg-chno", "tvg-shift", "tvg-rec", "group-title",
+            "catchup", "catchup-days", "catchup-source", "timeshift", "url-tvg", "x-tvg-url"
+    };
 
-                    case "EXTINF":
-                        String infoLine = m.group(2);
-                        m = INFO_PAT.matcher(infoLine);
-                        if (m.matches()) {
-                            name = parseProps(m.group(2), props = new HashMap<>()).strip();
-                            if (name.startsWith(",")) {
-                                name = name.substring(1).strip();
-                            }
-                        } else {
-                            LOG.error("malformed channel info: {}", infoLine);
-                            return null;
-                        }
-                        break;
+    private Map<String, String> m3uProps = Collections.emptyMap();
+    private final List<M3uChannel> channels = new ArrayList<>();
 
-                    case "EXTGRP":
-                        for (String group : m.group(2).strip().split(";")) {
-                            groups.add(group.strip());
-                        }
-                        break;
+    private Set<String> groups = new HashSet<>();
+    private Map<String, String> props;
+    private String name;
+
+    private final Predicate<Set<String>> groupFilter;
+    // names of channels accepted by group filter
+    private final Set<String> acceptedNames = new HashSet<>();
+
+    private boolean malformed;
 
-                    default:
-                        LOG.warn("unknown m3u tag: {}", m.group(1));
+    public M3uParser() {
+        this(null);
+    }
+
+    /**
+     * Channel is kept in case its groups are accepted by filter or in case channel with the same name was
+     * accepted earlier in playlist - duplicates are joining first accepted channel regardless of their groups.
+     *
+     * @param groupFilter channels with groups not accepted by filter are skipped, null means accept all
+     */
+    public M3uParser(Predicate<Set<String>> groupFilter) {
+        this.groupFilter = groupFilter;
+    }
+
+    public static M3uDoc parse(CharSequence content) {
+        M3uParser parser = new M3uParser();
+
+        int len = content.length();
+        int start = 0;
+        while (start < len) {
+            int end = indexOf(content, '\n', start, len);
+            if (!parser.parseLine(content, start, end)) {
+                return null;
+            }
+            start = end + 1;
+        }
+
+        return parser.getDoc();
+    }
+
+    /**
+     * Parses playlist while it is read. Only current line is kept in memory.
+     */
+    public static M3uDoc parse(Reader reader, Predicate<Set<String>> groupFilter) throws IOException {
+        M3uParser parser = new M3uParser(groupFilter);
+
+        char[] buf = new char[64 * 1024];
+        CharBuffer cb = CharBuffer.wrap(buf);
+        int len = 0;
+        int start = 0;
+
+        while (true) {
+            int scanFrom = len;
+            int n = reader.read(buf, len, buf.length - len);
+            if (n < 0) {
+                break;
+            }
+            len += n;
+
+            int end;
+            while ((end = indexOf(cb, '\n', scanFrom, len)) < len) {
+                if (!parser.parseLine(cb, start, end)) {
+                    return null;
                 }
-            } else if (!line.isEmpty()) {
-                if (name == null) {
-                    LOG.warn("url found while no info defined: {}", line);
-                } else {
-                    String group = props.remove("group-title");
-                    if (group != null) {
-                        groups.add(group);
-                    }
+                start = end + 1;
+                scanFrom = start;
+            }
+
+            if (start > 0) {
+                // keep only incomplete line
+                System.arraycopy(buf, start, buf, 0, len - start);
+                len -= start;
+                start = 0;
+            } else if (len == buf.length) {
+                // line is longer then buffer
+                buf = Arrays.copyOf(buf, buf.length * 2);
+                cb = CharBuffer.wrap(buf);
+            }
+        }
+
+        if (start < len && !parser.parseLine(cb, start, len)) {
+            return null;
+        }
+
+        return parser.getDoc();
+    }
+
+    /**
+     * Parses single playlist line (without line separator).
+     *
+     * @return false in case playlist is malformed and parsing can't be continued
+     */
+    public boolean parseLine(CharSequence line, int start, int end) {
+        if (malformed) {
+            return false;
+        }
+
+        // strip
+        while (start < end && Character.isWhitespace(line.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(line.charAt(end - 1))) {
+            end--;
+        }
 
-                    channels.add(new M3uChannel(line, name, groups, props));
+        if (start == end) {
+            return true;
+        }
+
+        if (line.charAt(start) == '#') {
+            parseTag(line, start + 1, end);
+        } else {
+            parseUrl(line, start, end);
+        }
+
+        return !malformed;
+    }
+
+    public M3uDoc getDoc() {
+        return malformed ? null : new M3uDoc(channels, m3uProps);
+    }
 
-                    name = null;
-                    groups = new HashSet<>();
-                    props = null;
+    private void parseTag(CharSequence line, int start, int end) {
+        int tagEnd = start;
+        while (tagEnd < end && isNameChar(line.charAt(tagEnd))) {
+            tagEnd++;
+        }
+
+        if (tagEnd == start) {
+            // comment
+            return;
+        }
+
+        int pos = tagEnd;
+        if (pos < end) {
+            char c = line.charAt(pos);
+            if (c != ':' && c != ' ') {
+                LOG.warn("malformed m3u tag: {}", line.subSequence(start - 1, end));
+                return;
+            }
+            pos++;
+        }
+
+        if (regionEquals(line, start, tagEnd, "EXTINF")) {
+            parseInfo(line, pos, end);
+        } else if (regionEquals(line, start, tagEnd, "EXTGRP")) {
+            int s = pos;
+            while (s <= end) {
+                int e = indexOf(line, ';', s, end);
+                String group = substring(line, s, e);
+                if (!group.isEmpty()) {
+                    groups.add(group);
                 }
+                s = e + 1;
             }
+        } else if (regionEquals(line, start, tagEnd, "EXTM3U")) {
+            if (pos < end) {
+                m3uProps = new HashMap<>();
+                int nameStart = parseProps(line, pos, end, m3uProps, false);
+                if (nameStart < end) {
+                    LOG.warn("malformed property: {}", line.subSequence(nameStart, end));
+                }
+            }
+        } else {
+            LOG.warn("unknown m3u tag: {}", line.subSequence(start, tagEnd));
+        }
+    }
+
+    private void parseInfo(CharSequence line, int start, int end) {
+        // duration: integer or decimal number, -1 for live streams
+        int pos = start;
+        while (pos < end && isDurationChar(line.charAt(pos), pos == start)) {
+            pos++;
+        }
+
+        if (pos == start) {
+            LOG.error("malformed channel info: {}", line.subSequence(start, end));
+            malformed = true;
+            return;
         }
 
-        return new M3uDoc(channels, m3uProps);
+        props = new HashMap<>();
+
+        int nameStart = parseProps(line, pos, end, props, true);
+        if (nameStart < end && line.charAt(nameStart) == ',') {
+            nameStart++;
+        }
+
+        name = substring(line, nameStart, end);
     }
 
-    private static String parseProps(String line, Map<String, String> props) {
-        String postfix = "";
-        List<String> malformedProps = new ArrayList<>();
+    private void parseUrl(CharSequence line, int start, int end) {
+        if (name == null) {
+            LOG.warn("url found while no info defined: {}", line.subSequence(start, end));
+            return;
+        }
+
+        String group = props.remove("group-title");
+        if (group != null) {
+            groups.add(group);
+        }
+
+        boolean accepted = groupFilter == null || acceptedNames.contains(name);
+        if (!accepted && groupFilter.test(groups)) {
+            acceptedNames.add(name);
+            accepted = true;
+        }
+
+        if (accepted) {
+            channels.add(new M3uChannel(line.subSequence(start, end).toString(), name, groups, props));
+            groups = new HashSet<>();
+        } else {
+            groups.clear();
+        }
+
+        name = null;
+        props = null;
+    }
+
+    /**
+     * Parses properties in forms key="value" and key=value.
+     *
+     * @return position of text after last property
+     */
+    private static int parseProps(CharSequence line, int pos, int end, Map<String, String> props, boolean stopOnComma) {
+        int rest = pos;
+        int malformedStart = -1;
+
+        while (true) {
+            while (pos < end && line.charAt(pos) == ' ') {
+                pos++;
+            }
 
-        while (line.length() > 0) {
-            Matcher m = PROP_PAT.matcher(line);
-            if (!m.matches()) {
-                m = PROP_NONSTD_PAT.matcher(line);
+            if (pos == end || (stopOnComma && line.charAt(pos) == ',')) {
+                break;
             }
-            if (m.matches()) {
-                props.put(m.group(1), m.group(2));
-                line = m.group(3).strip();
-                postfix = line;
-
-                if (!malformedProps.isEmpty()) {
-                    malformedProps.forEach(prop -> LOG.warn("malformed property: {}", prop));
-                    malformedProps.clear();
+
+            int keyEnd = pos;
+            while (keyEnd < end && isNameChar(line.charAt(keyEnd))) {
+                keyEnd++;
+            }
+
+            if (keyEnd > pos && keyEnd < end && line.charAt(keyEnd) == '=') {
+                int valueStart = keyEnd + 1;
+                int valueEnd;
+                int next;
+
+                if (valueStart < end && line.charAt(valueStart) == '"') {
+                    valueStart++;
+                    valueEnd = indexOf(line, '"', valueStart, end);
+                    if (valueEnd == end) {
+                        // unterminated quote - nothing to parse anymore
+                        if (malformedStart < 0) {
+                            malformedStart = pos;
+                        }
+                        pos = stopOnComma ? indexOf(line, ',', pos, end) : end;
+                        break;
+                    }
+                    next = valueEnd + 1;
+                } else {
+                    valueEnd = valueStart;
+                    while (valueEnd < end && line.charAt(valueEnd) != ' ' && !(stopOnComma && line.charAt(valueEnd) == ',')) {
+                        valueEnd++;
+                    }
+                    next = valueEnd;
                 }
+
+                props.put(key(line, pos, keyEnd), line.subSequence(valueStart, valueEnd).toString());
+
+                if (malformedStart >= 0) {
+                    LOG.warn("malformed property: {}", line.subSequence(malformedStart, pos).toString().strip());
+                    malformedStart = -1;
+                }
+
+                pos = next;
+                rest = pos;
             } else {
-                // try to continue parsing properties
-                int idx = line.indexOf(' ');
-                if (idx < 0) {
-                    idx = line.length();
+                // not a property - skip till next space and try to continue parsing properties
+                if (malformedStart < 0) {
+                    malformedStart = pos;
+                }
+
+                while (pos < end && line.charAt(pos) != ' ' && !(stopOnComma && line.charAt(pos) == ',')) {
+                    pos++;
                 }
+            }
+        }
+
+        if (stopOnComma && pos < end) {
+            // comma found - everything before it was properties
+            if (malformedStart >= 0) {
+                LOG.warn("malformed property: {}", line.subSequence(malformedStart, pos).toString().strip());
+            }
+            return pos;
+        }
 
-                malformedProps.add(line.substring(0, idx));
+        return skipSpaces(line, rest, end);
+    }
 
-                line = line.substring(idx).strip();
+    private static String key(CharSequence line, int start, int end) {
+        for (String k : KNOWN_KEYS) {
+            if (regionEquals(line, start, end, k)) {
+                return k;
             }
         }
 
-        return postfix;
+        return line.subSequence(start, end).toString();
+    }
+
+    private static String substring(CharSequence line, int start, int end) {
+        start = skipSpaces(line, start, end);
+        while (end > start && Character.isWhitespace(line.charAt(end - 1))) {
+            end--;
+        }
+
+        return line.subSequence(start, end).toString();
+    }
+
+    private static int skipSpaces(CharSequence line, int pos, int end) {
+        while (pos < end && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int indexOf(CharSequence line, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean regionEquals(CharSequence line, int start, int end, String str) {
+        if (end - start != str.length()) {
+            return false;
+        }
+
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) != str.charAt(i - start)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+    }
+
+    private static boolean isDurationChar(char c, boolean first) {
+        return (c >= '0' && c <= '9') || c == '.' || (first && (c == '-' || c == '+'));
     }
 }
@@ -25,6 +25,10 @@ public class XmltvRating {
         return this;
     }
 
+    public String getValue() {
+        return value;
+    }
+
     public XmltvRating setValue(String value) {
         this.value = value;
         return this;
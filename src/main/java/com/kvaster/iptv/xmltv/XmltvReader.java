@@ -0,0 +1,290 @@
+package com.kvaster.iptv.xmltv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming xmltv reader. Channels and programmes are passed to listener one by one,
+ * so whole document is never kept in memory.
+ */
+public class XmltvReader {
+    private static final Logger LOG = LoggerFactory.getLogger(XmltvReader.class);
+
+    public interface Listener {
+        default void onChannel(XmltvChannel channel) throws IOException {
+        }
+
+        /**
+         * Called once after all channels are read (xmltv has all channels before programmes).
+         */
+        default void onChannelsEnd() throws IOException {
+        }
+
+        /**
+         * Called before programme is read.
+         *
+         * @return channel id to use for programme or null if programme should be skipped
+         */
+        default String onProgrammeStart(String channel, ZonedDateTime start, ZonedDateTime stop) throws IOException {
+            return channel;
+        }
+
+        default void onProgramme(XmltvProgramme programme) throws IOException {
+        }
+    }
+
+    private final XMLInputFactory factory;
+
+    public XmltvReader(XMLInputFactory factory) {
+        this.factory = factory;
+    }
+
+    public void read(InputStream is, Listener listener) throws IOException {
+        try {
+            XMLStreamReader r = factory.createXMLStreamReader(is);
+            try {
+                read(r, listener);
+            } finally {
+                r.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void read(XMLStreamReader r, Listener listener) throws XMLStreamException, IOException {
+        boolean channelsEnded = false;
+        int malformed = 0;
+
+        while (r.hasNext()) {
+            if (r.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+
+            switch (r.getLocalName()) {
+                case "tv":
+                    // root element - just continue with children
+                    break;
+
+                case "channel":
+                    listener.onChannel(readChannel(r));
+                    break;
+
+                case "programme":
+                    if (!channelsEnded) {
+                        channelsEnded = true;
+                        listener.onChannelsEnd();
+                    }
+
+                    if (!readProgramme(r, listener)) {
+                        malformed++;
+                    }
+                    break;
+
+                default:
+                    skipElement(r);
+            }
+        }
+
+        if (!channelsEnded) {
+            listener.onChannelsEnd();
+        }
+
+        if (malformed > 0) {
+            LOG.warn("programmes skipped due to malformed time: {}", malformed);
+        }
+    }
+
+    private XmltvChannel readChannel(XMLStreamReader r) throws XMLStreamException {
+        XmltvChannel ch = new XmltvChannel().setId(r.getAttributeValue(null, "id"));
+        List<XmltvText> displayNames = null;
+
+        while (nextChild(r)) {
+            switch (r.getLocalName()) {
+                case "display-name":
+                    if (displayNames == null) {
+                        displayNames = new ArrayList<>();
+                    }
+                    displayNames.add(readText(r));
+                    break;
+
+                case "icon":
+                    ch.setIcon(readIcon(r));
+                    break;
+
+                default:
+                    skipElement(r);
+            }
+        }
+
+        return ch.setDisplayNames(displayNames);
+    }
+
+    private boolean readProgramme(XMLStreamReader r, Listener listener) throws XMLStreamException, IOException {
+        ZonedDateTime start = parseTime(r.getAttributeValue(null, "start"));
+        ZonedDateTime stop = parseTime(r.getAttributeValue(null, "stop"));
+
+        if (start == null || stop == null) {
+            skipElement(r);
+            return false;
+        }
+
+        String channel = listener.onProgrammeStart(r.getAttributeValue(null, "channel"), start, stop);
+        if (channel == null) {
+            skipElement(r);
+            return true;
+        }
+
+        XmltvProgramme p = new XmltvProgramme(channel, start, stop);
+
+        while (nextChild(r)) {
+            switch (r.getLocalName()) {
+                case "category":
+                    p.setCategory(readText(r));
+                    break;
+
+                case "title":
+                    p.setTitle(readText(r));
+                    break;
+
+                case "desc":
+                    p.setDesc(readText(r));
+                    break;
+
+                case "rating":
+                    p.setRating(readRating(r));
+                    break;
+
+                case "icon":
+                    p.setIcon(readIcon(r));
+                    break;
+
+                default:
+                    skipElement(r);
+            }
+        }
+
+        listener.onProgramme(p);
+
+        return true;
+    }
+
+    private static ZonedDateTime parseTime(String time) {
+        if (time == null) {
+            return null;
+        }
+
+        try {
+            return ZonedDateTime.parse(time, XmltvUtils.TIME_FORMAT);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static XmltvText readText(XMLStreamReader r) throws XMLStreamException {
+        String lang = r.getAttributeValue(null, "lang");
+        return new XmltvText(readElementText(r), lang);
+    }
+
+    private static XmltvIcon readIcon(XMLStreamReader r) throws XMLStreamException {
+        XmltvIcon icon = new XmltvIcon(r.getAttributeValue(null, "src"));
+        skipElement(r);
+        return icon;
+    }
+
+    private static XmltvRating readRating(XMLStreamReader r) throws XMLStreamException {
+        XmltvRating rating = new XmltvRating().setSystem(r.getAttributeValue(null, "system"));
+
+        while (nextChild(r)) {
+            if ("value".equals(r.getLocalName())) {
+                rating.setValue(readElementText(r));
+            } else {
+                skipElement(r);
+            }
+        }
+
+        return rating;
+    }
+
+    /**
+     * Moves to next child element start or to current element end. Any text between child elements is ignored.
+     *
+     * @return true if child element is found
+     */
+    private static boolean nextChild(XMLStreamReader r) throws XMLStreamException {
+        while (true) {
+            int ev = r.next();
+            if (ev == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (ev == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Reads element text skipping any nested elements. Reader is positioned at element end after this call.
+     */
+    private static String readElementText(XMLStreamReader r) throws XMLStreamException {
+        StringBuilder sb = null;
+        String text = null;
+        int depth = 1;
+
+        while (depth > 0) {
+            switch (r.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    if (depth == 1) {
+                        // most elements have single text chunk - avoid string builder in this case
+                        if (text == null) {
+                            text = r.getText();
+                        } else {
+                            if (sb == null) {
+                                sb = new StringBuilder(text);
+                            }
+                            sb.append(r.getText());
+                        }
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        return sb != null ? sb.toString() : text;
+    }
+
+    private static void skipElement(XMLStreamReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int ev = r.next();
+            if (ev == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (ev == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.kvaster.iptv.xmltv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Temporary on-disk storage for serialized programmes. Xmltv must have all channels before programmes,
+ * so programmes are spooled here while channels are still collected and copied to final document later.
+ */
+public class XmltvSpool implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(XmltvSpool.class);
+
+    private final Path file;
+    private final Deflater deflater;
+    private final XmltvWriter writer;
+
+    private int count;
+    private boolean finished;
+
+    public XmltvSpool(Path dir) throws IOException {
+        file = createFile(dir);
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        writer = new XmltvWriter(new DeflaterOutputStream(new BufferedOutputStream(Files.newOutputStream(file)), deflater, 64 * 1024));
+    }
+
+    private XmltvSpool(Path dir, InputStream data, int count) throws IOException {
+        file = createFile(dir);
+        deflater = null;
+        writer = null;
+
+        this.count = count;
+        this.finished = true;
+
+        try {
+            Files.copy(data, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates finished spool from data saved with {@link #copyTo(OutputStream)}.
+     */
+    public static XmltvSpool restore(Path dir, InputStream data, int count) throws IOException {
+        return new XmltvSpool(dir, data, count);
+    }
+
+    private static Path createFile(Path dir) throws IOException {
+        return dir == null ? Files.createTempFile("iptvproxy-", ".xmltv") : Files.createTempFile(dir, "iptvproxy-", ".xmltv");
+    }
+
+    public void writeProgramme(XmltvProgramme p) throws IOException {
+        writer.writeProgramme(p);
+        count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            writer.close();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Copies spooled data in internal (compressed) format.
+     */
+    public void copyTo(OutputStream os) throws IOException {
+        finish();
+        Files.copy(file, os);
+    }
+
+    public InputStream openStream() throws IOException {
+        finish();
+        return new InflaterInputStream(new BufferedInputStream(Files.newInputStream(file)), new Inflater(), 64 * 1024) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        try {
+            finish();
+        } catch (IOException e) {
+            LOG.warn("error closing xmltv spool: {}", e.getMessage());
+        }
+
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("error deleting xmltv spool: {}", e.getMessage());
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package com.kvaster.iptv.xmltv;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -22,7 +24,10 @@ import org.slf4j.LoggerFactory;
 public class XmltvUtils {
     private static final Logger LOG = LoggerFactory.getLogger(XmltvUtils.class);
 
+    public static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss Z");
+
     public static final XmlMapper xmltvMapper = createMapper();
+    public static final XmltvReader xmltvReader = new XmltvReader(xmltvMapper.getFactory().getXMLInputFactory());
 
     public static XmlMapper createMapper() {
         return XmlMapper.builder()
@@ -38,20 +43,57 @@ public class XmltvUtils {
     }
 
     public static XmltvDoc parseXmltv(byte[] data) {
-        try {
-            try (InputStream is = openStream(data)) {
-                return xmltvMapper.readValue(is, XmltvDoc.class);
+        XmltvDoc doc = new XmltvDoc()
+                .setChannels(new ArrayList<>())
+                .setProgrammes(new ArrayList<>());
+
+        boolean ok = parseXmltv(data, new XmltvReader.Listener() {
+            @Override
+            public void onChannel(XmltvChannel channel) {
+                doc.getChannels().add(channel);
             }
+
+            @Override
+            public void onProgramme(XmltvProgramme programme) {
+                doc.getProgrammes().add(programme);
+            }
+        });
+
+        return ok ? doc : null;
+    }
+
+    public static boolean parseXmltv(byte[] data, XmltvReader.Listener listener) {
+        return parseXmltv(new ByteArrayInputStream(data), listener);
+    }
+
+    /**
+     * Parses plain or gzipped xmltv data. Stream is not closed.
+     */
+    public static boolean parseXmltv(InputStream is, XmltvReader.Listener listener) {
+        try {
+            xmltvReader.read(openStream(is), listener);
+            return true;
         } catch (IOException e) {
-            LOG.error("error parsing xmltv data");
-            return null;
+            LOG.error("error parsing xmltv data: {}", e.getMessage());
+            return false;
         }
     }
 
-    private static InputStream openStream(byte[] data) throws IOException {
-        InputStream is = new ByteArrayInputStream(data);
-        if (data.length >= 2 && data[0] == (byte)0x1f && data[1] == (byte)0x8b) {
-            is = new GZIPInputStream(is);
+    private static InputStream openStream(InputStream is) throws IOException {
+        // xml reader closes input on document end
+        is = new BufferedInputStream(new FilterInputStream(is) {
+            @Override
+            public void close() {
+            }
+        }, 64 * 1024);
+
+        is.mark(2);
+        int b1 = is.read();
+        int b2 = is.read();
+        is.reset();
+
+        if (b1 == 0x1f && b2 == 0x8b) {
+            is = new GZIPInputStream(is, 64 * 1024);
         }
 
         return is;
@@ -61,11 +103,19 @@ public class XmltvUtils {
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
 
-            try (GZIPOutputStream gos = new GZIPOutputStream(bos); BufferedOutputStream bbos = new BufferedOutputStream(gos)) {
-                bbos.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><!DOCTYPE tv SYSTEM \"xmltv.dtd\">\n".getBytes(StandardCharsets.UTF_8));
-                xmltvMapper.writeValue(bbos, xmltv);
-                //xmltvMapper.writerWithDefaultPrettyPrinter().writeValue(bbos, xmltv);
-                bbos.flush();
+            try (XmltvWriter w = new XmltvWriter(new GZIPOutputStream(bos, 64 * 1024))) {
+                w.writeStart(xmltv);
+                if (xmltv.getChannels() != null) {
+                    for (XmltvChannel ch : xmltv.getChannels()) {
+                        w.writeChannel(ch);
+                    }
+                }
+                if (xmltv.getProgrammes() != null) {
+                    for (XmltvProgramme p : xmltv.getProgrammes()) {
+                        w.writeProgramme(p);
+                    }
+                }
+                w.writeEnd();
             }
 
             return bos.toByteArray();
@@ -0,0 +1,184 @@
+package com.kvaster.iptv.xmltv;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+/**
+ * Incremental xmltv writer. Elements are written to output stream right away, so document
+ * of any size may be written with constant memory.
+ */
+public class XmltvWriter implements Closeable {
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><!DOCTYPE tv SYSTEM \"xmltv.dtd\">\n";
+
+    private final OutputStream os;
+    private final Writer out;
+
+    public XmltvWriter(OutputStream os) {
+        this.os = os;
+        this.out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    public void writeStart(XmltvDoc doc) throws IOException {
+        out.write(HEADER);
+        out.write("<tv");
+        writeAttr("generator-info-name", doc.getGeneratorName());
+        writeAttr("generator-info-url", doc.getGeneratorUrl());
+        writeAttr("source-info-url", doc.getSourceInfoUrl());
+        writeAttr("source-info-name", doc.getSourceInfoName());
+        writeAttr("source-info-logo", doc.getSourceInfoLogo());
+        out.write(">\n");
+    }
+
+    public void writeEnd() throws IOException {
+        out.write("</tv>\n");
+    }
+
+    public void writeChannel(XmltvChannel ch) throws IOException {
+        out.write("<channel");
+        writeAttr("id", ch.getId());
+        out.write('>');
+
+        List<XmltvText> displayNames = ch.getDisplayNames();
+        if (displayNames != null) {
+            for (XmltvText name : displayNames) {
+                writeText("display-name", name);
+            }
+        }
+
+        writeIcon(ch.getIcon());
+
+        out.write("</channel>\n");
+    }
+
+    public void writeProgramme(XmltvProgramme p) throws IOException {
+        out.write("<programme");
+        writeAttr("start", p.getStart());
+        writeAttr("stop", p.getStop());
+        writeAttr("channel", p.getChannel());
+        out.write('>');
+
+        writeText("category", p.getCategory());
+        writeText("title", p.getTitle());
+        writeText("desc", p.getDesc());
+
+        XmltvRating rating = p.getRating();
+        if (rating != null) {
+            out.write("<rating");
+            writeAttr("system", rating.getSystem());
+            out.write('>');
+            if (rating.getValue() != null) {
+                out.write("<value>");
+                writeEscaped(rating.getValue(), false);
+                out.write("</value>");
+            }
+            out.write("</rating>");
+        }
+
+        writeIcon(p.getIcon());
+
+        out.write("</programme>\n");
+    }
+
+    /**
+     * Copies already serialized elements (i.e. produced by another writer) to output.
+     */
+    public void writeRaw(InputStream is) throws IOException {
+        out.flush();
+        is.transferTo(os);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeIcon(XmltvIcon icon) throws IOException {
+        if (icon != null) {
+            out.write("<icon");
+            writeAttr("src", icon.getSrc());
+            out.write("/>");
+        }
+    }
+
+    private void writeText(String tag, XmltvText text) throws IOException {
+        if (text == null) {
+            return;
+        }
+
+        out.write('<');
+        out.write(tag);
+        writeAttr("lang", text.getLanguage());
+
+        if (text.getText() == null) {
+            out.write("/>");
+        } else {
+            out.write('>');
+            writeEscaped(text.getText(), false);
+            out.write("</");
+            out.write(tag);
+            out.write('>');
+        }
+    }
+
+    private void writeAttr(String name, ZonedDateTime value) throws IOException {
+        if (value != null) {
+            writeAttr(name, XmltvUtils.TIME_FORMAT.format(value));
+        }
+    }
+
+    private void writeAttr(String name, String value) throws IOException {
+        if (value != null) {
+            out.write(' ');
+            out.write(name);
+            out.write("=\"");
+            writeEscaped(value, true);
+            out.write('"');
+        }
+    }
+
+    private void writeEscaped(String value, boolean isAttr) throws IOException {
+        int start = 0;
+        int len = value.length();
+
+        for (int i = 0; i < len; i++) {
+            String esc;
+
+            switch (value.charAt(i)) {
+                case '&':
+                    esc = "&amp;";
+                    break;
+                case '<':
+                    esc = "&lt;";
+                    break;
+                case '>':
+                    esc = "&gt;";
+                    break;
+                case '"':
+                    esc = isAttr ? "&quot;" : null;
+                    break;
+                default:
+                    esc = null;
+            }
+
+            if (esc != null) {
+                out.write(value, start, i - start);
+                out.write(esc);
+                start = i + 1;
+            }
+        }
+
+        out.write(value, start, len - start);
+    }
+}
@@ -1,5 +1,7 @@
 package com.kvaster.utils.digest;
 
+import java.io.InputStream;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 
 public class Digest {
@@ -40,12 +42,30 @@ public class Digest {
     }
 
     public String digest(String str) {
-        md.update(str.getBytes());
+        return digest(str.getBytes());
+    }
+
+    public String digest(byte[] data) {
+        md.update(data);
         byte[] digest = md.digest();
         md.reset();
         return toHex(digest);
     }
 
+    /**
+     * @return stream which updates digest with all data read from it
+     */
+    public InputStream digestStream(InputStream is) {
+        return new DigestInputStream(is, md);
+    }
+
+    /**
+     * Completes digest of data read by digest stream and resets it.
+     */
+    public byte[] digest() {
+        return md.digest();
+    }
+
     private static String toHex(byte[] digest) {
         StringBuilder sb = new StringBuilder(digest.length * 2);
         for (byte b : digest) {
@@ -0,0 +1,54 @@
+package com.kvaster.utils.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with fixed bucket bounds. Observation is lock free and does not allocate.
+ */
+public class Histogram {
+    // upper inclusive bounds, last bucket is +Inf
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param bounds ascending upper bounds of buckets
+     */
+    public Histogram(long[] bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void observe(long value) {
+        // bounds are few, linear search is fastest
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+
+        buckets[i].increment();
+        sum.add(value);
+    }
+
+    long[] getBounds() {
+        return bounds;
+    }
+
+    /**
+     * @return non cumulative counts per bucket, last one is +Inf bucket
+     */
+    long[] getCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    long getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,180 @@
+package com.kvaster.utils.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram for latencies with fixed memory and bounded relative error. Each power of two range is split
+ * to {@value SUB_BUCKETS} linear buckets, so value is recorded with error below 1/{@value SUB_BUCKETS}.
+ * <p>
+ * Each thread records to its own shard with plain ordered writes - no CAS and no contention. Shards are merged on read.
+ * Shards of terminated threads are folded to single retired shard on read, so memory does not grow with thread churn.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // values above 2^38 are recorded as max value, i.e. ~3 days in micros
+    private static final int MAX_EXP = 37;
+    private static final long MAX_VALUE = (1L << (MAX_EXP + 1)) - 1;
+    private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private static class Shard {
+        final Thread owner;
+
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        Shard(Thread owner) {
+            this.owner = owner;
+        }
+
+        // single writer - read and ordered write is enough
+        void record(int idx, long value) {
+            counts.lazySet(idx, counts.get(idx) + 1);
+            count.lazySet(count.get() + 1);
+            sum.lazySet(sum.get() + value);
+            if (value > max.get()) {
+                max.lazySet(value);
+            }
+        }
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param p percentile in range [0, 1]
+         * @return upper bound of bucket containing percentile, 0 if there are no values
+         */
+        public long percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(p * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+
+            return max;
+        }
+
+        /**
+         * @param earlier previous snapshot of the same histogram
+         * @return values recorded after earlier snapshot
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] c = new long[counts.length];
+            int top = -1;
+            for (int i = 0; i < c.length; i++) {
+                c[i] = counts[i] - earlier.counts[i];
+                if (c[i] > 0) {
+                    top = i;
+                }
+            }
+
+            // max is not tracked per interval - upper bound of highest bucket is used
+            return new Snapshot(c, count - earlier.count, sum - earlier.sum, top < 0 ? 0 : Math.min(upperBound(top), max));
+        }
+    }
+
+    private final List<Shard> shards = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Shard> shard = ThreadLocal.withInitial(() -> {
+        Shard s = new Shard(Thread.currentThread());
+        shards.add(s);
+        return s;
+    });
+
+    // guarded by this
+    private final long[] retired = new long[BUCKETS];
+    private long retiredCount;
+    private long retiredSum;
+    private long retiredMax;
+
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        shard.get().record(index(value), value);
+    }
+
+    public synchronized Snapshot snapshot() {
+        long[] counts = retired.clone();
+        long count = retiredCount;
+        long sum = retiredSum;
+        long max = retiredMax;
+
+        for (Shard s : shards) {
+            // thread termination makes all its writes visible
+            boolean dead = !s.owner.isAlive();
+
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += s.counts.get(i);
+            }
+            count += s.count.get();
+            sum += s.sum.get();
+            max = Math.max(max, s.max.get());
+
+            if (dead) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    retired[i] += s.counts.get(i);
+                }
+                retiredCount += s.count.get();
+                retiredSum += s.sum.get();
+                retiredMax = Math.max(retiredMax, s.max.get());
+
+                shards.remove(s);
+            }
+        }
+
+        return new Snapshot(counts, count, sum, max);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) - SUB_BUCKETS;
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int idx) {
+        if (idx < SUB_BUCKETS) {
+            return idx;
+        }
+
+        int shift = idx / SUB_BUCKETS - 1;
+        long low = (long) (SUB_BUCKETS + idx % SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+}
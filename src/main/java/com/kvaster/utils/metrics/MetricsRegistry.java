@@ -0,0 +1,255 @@
+package com.kvaster.utils.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics registry with prometheus text exposition. Metrics are grouped to families with same name and label names.
+ * <p>
+ * Label lookup allocates, so labeled metric should be resolved once and kept by the code which updates it.
+ */
+public class MetricsRegistry {
+    private final List<Family<?>> families = new CopyOnWriteArrayList<>();
+
+    public abstract static class Family<T> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String[] labelNames;
+
+        private final Map<List<String>, T> children = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type, String[] labelNames) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+        }
+
+        T child(String[] labelValues, Function<List<String>, T> factory) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException("wrong label count for " + name + ": " + labelValues.length);
+            }
+
+            return children.computeIfAbsent(List.of(labelValues), factory);
+        }
+
+        abstract void write(StringBuilder sb, String labels, T child);
+
+        private void write(StringBuilder sb) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+
+            children.forEach((values, child) -> write(sb, labels(values), child));
+        }
+
+        private String labels(List<String> values) {
+            if (values.isEmpty()) {
+                return "";
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < labelNames.length; i++) {
+                sb.append(i == 0 ? "" : ",").append(labelNames[i]).append("=\"");
+                escape(sb, values.get(i));
+                sb.append('"');
+            }
+            return sb.toString();
+        }
+
+        String getName() {
+            return name;
+        }
+    }
+
+    public static class CounterFamily extends Family<Counter> {
+        private CounterFamily(String name, String help, String[] labelNames) {
+            super(name, help, "counter", labelNames);
+        }
+
+        public Counter labels(String... values) {
+            return child(values, (v) -> new Counter());
+        }
+
+        @Override
+        void write(StringBuilder sb, String labels, Counter c) {
+            sample(sb, getName(), labels, c.get());
+        }
+    }
+
+    public static class GaugeFamily extends Family<LongSupplier[]> {
+        private GaugeFamily(String name, String help, String[] labelNames) {
+            super(name, help, "gauge", labelNames);
+        }
+
+        /**
+         * Gauge value is taken from supplier on each exposition. Previous supplier with same labels is replaced.
+         */
+        public void register(LongSupplier supplier, String... values) {
+            child(values, (v) -> new LongSupplier[1])[0] = supplier;
+        }
+
+        @Override
+        void write(StringBuilder sb, String labels, LongSupplier[] s) {
+            sample(sb, getName(), labels, s[0].getAsLong());
+        }
+    }
+
+    public static class HistogramFamily extends Family<Histogram> {
+        private final long[] bounds;
+        private final double scale;
+
+        private HistogramFamily(String name, String help, String[] labelNames, long[] bounds, double scale) {
+            super(name, help, "histogram", labelNames);
+            this.bounds = bounds;
+            this.scale = scale;
+        }
+
+        public Histogram labels(String... values) {
+            return child(values, (v) -> new Histogram(bounds));
+        }
+
+        @Override
+        void write(StringBuilder sb, String labels, Histogram h) {
+            String prefix = labels.isEmpty() ? "" : labels + ',';
+
+            long[] counts = h.getCounts();
+            long[] bounds = h.getBounds();
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i];
+                String le = i < bounds.length ? Double.toString(bounds[i] / scale) : "+Inf";
+                sample(sb, getName() + "_bucket", prefix + "le=\"" + le + '"', total);
+            }
+
+            value(sb, getName() + "_sum", labels, h.getSum() / scale);
+
+            sample(sb, getName() + "_count", labels, total);
+        }
+    }
+
+    public static class SummaryFamily extends Family<SummaryFamily.Summary> {
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        // quantiles are calculated over last one or two periods
+        private static final long PERIOD_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+        static class Summary {
+            final LatencyHistogram histogram = new LatencyHistogram();
+
+            // guarded by this
+            private LatencyHistogram.Snapshot older = histogram.snapshot();
+            private LatencyHistogram.Snapshot newer = older;
+            private long rotatedAt = System.nanoTime();
+
+            /**
+             * Histogram is never reset - window is difference with snapshot taken one or two periods ago.
+             */
+            synchronized LatencyHistogram.Snapshot window(LatencyHistogram.Snapshot current) {
+                long now = System.nanoTime();
+                if (now - rotatedAt >= PERIOD_NANOS) {
+                    older = newer;
+                    newer = current;
+                    rotatedAt = now;
+                }
+
+                return current.since(older);
+            }
+        }
+
+        private final double scale;
+
+        private SummaryFamily(String name, String help, String[] labelNames, double scale) {
+            super(name, help, "summary", labelNames);
+            this.scale = scale;
+        }
+
+        public LatencyHistogram labels(String... values) {
+            return child(values, (v) -> new Summary()).histogram;
+        }
+
+        @Override
+        void write(StringBuilder sb, String labels, Summary summary) {
+            String prefix = labels.isEmpty() ? "" : labels + ',';
+
+            LatencyHistogram.Snapshot s = summary.histogram.snapshot();
+            LatencyHistogram.Snapshot w = summary.window(s);
+            for (double q : QUANTILES) {
+                value(sb, getName(), prefix + "quantile=\"" + q + '"', w.percentile(q) / scale);
+            }
+
+            // sum and count are cumulative as prometheus expects
+            value(sb, getName() + "_sum", labels, s.getSum() / scale);
+            sample(sb, getName() + "_count", labels, s.getCount());
+        }
+    }
+
+    public CounterFamily counter(String name, String help, String... labelNames) {
+        return register(new CounterFamily(name, help, labelNames));
+    }
+
+    public GaugeFamily gauge(String name, String help, String... labelNames) {
+        return register(new GaugeFamily(name, help, labelNames));
+    }
+
+    /**
+     * @param bounds bucket bounds in recorded units
+     * @param scale recorded units per exposed unit, i.e. 1000 for values recorded in millis and exposed in seconds
+     */
+    public HistogramFamily histogram(String name, String help, long[] bounds, double scale, String... labelNames) {
+        return register(new HistogramFamily(name, help, labelNames, bounds, scale));
+    }
+
+    /**
+     * Summary with quantiles over values recorded in last 5 to 10 minutes.
+     *
+     * @param scale recorded units per exposed unit, i.e. 1000000 for values recorded in micros and exposed in seconds
+     */
+    public SummaryFamily summary(String name, String help, double scale, String... labelNames) {
+        return register(new SummaryFamily(name, help, labelNames, scale));
+    }
+
+    private <F extends Family<?>> F register(F family) {
+        families.add(family);
+        return family;
+    }
+
+    /**
+     * Writes all metrics in prometheus text format.
+     */
+    public void write(StringBuilder sb) {
+        families.forEach((f) -> f.write(sb));
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void value(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '"' -> sb.append("\\\"");
+                case '\n' -> sb.append("\\n");
+                default -> sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.kvaster.utils.timer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel. Scheduling and cancellation are O(1) and do not touch any shared ordered structure:
+ * new and cancelled timeouts are passed to worker thread via lock free queues and worker moves them
+ * to wheel buckets once per tick.
+ * <p>
+ * Timeouts are fired with tick precision and tasks are executed by worker thread, so tasks must be short
+ * and must not block.
+ */
+public class HashedWheelTimer {
+    private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    // max number of new timeouts moved to wheel per tick, so worker is not stuck with endless scheduling
+    private static final int MAX_TRANSFER = 100_000;
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    public class Timeout {
+        private final Runnable task;
+        // relative to timer start
+        private final long deadline;
+
+        // field updater is used - timeouts are created very often
+        private volatile int state = ST_INIT;
+        // timeout is moved from pending queue to wheel
+        private volatile boolean transferred;
+
+        // fields below are accessed only by worker
+        long remainingRounds;
+        Bucket bucket;
+        Timeout next;
+        Timeout prev;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false in case timeout is already expired or cancelled
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+
+            // not transferred timeout is dropped by worker on transfer, cancelled timeouts are also dropped
+            // by worker on bucket visit, so queue is needed only to free bucket earlier
+            if (transferred) {
+                cancelled.add(this);
+            }
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (Throwable t) {
+                LOG.error("timer task failed", t);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts - removal is O(1).
+     */
+    private static class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        Timeout remove(Timeout t) {
+            Timeout next = t.next;
+
+            if (t.prev != null) {
+                t.prev.next = next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+
+            if (t == head) {
+                head = next;
+            }
+            if (t == tail) {
+                tail = t.prev;
+            }
+
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+
+            return next;
+        }
+
+        void expire(long deadline) {
+            Timeout t = head;
+            while (t != null) {
+                if (t.remainingRounds <= 0) {
+                    Timeout next = remove(t);
+                    if (t.deadline <= deadline) {
+                        t.expire();
+                    } else {
+                        // must not happen - timeout was placed into wrong bucket
+                        LOG.error("timeout deadline is after tick deadline: {} > {}", t.deadline, deadline);
+                    }
+                    t = next;
+                } else if (t.isCancelled()) {
+                    t = remove(t);
+                } else {
+                    t.remainingRounds--;
+                    t = t.next;
+                }
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+
+    // accessed only by worker
+    private long tick;
+
+    /**
+     * @param tickDuration timer precision
+     * @param wheelSize number of buckets, rounded up to power of two
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tick duration and wheel size must be positive");
+        }
+
+        tickNanos = unit.toNanos(tickDuration);
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+
+        startTime = System.nanoTime();
+
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay));
+
+        Timeout t = new Timeout(task, deadline);
+        if (!running) {
+            LOG.error("timer is stopped");
+            t.state = ST_CANCELLED;
+            return t;
+        }
+
+        pending.add(t);
+        return t;
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = waitForNextTick();
+            if (deadline < 0) {
+                break;
+            }
+
+            removeCancelled();
+            transferPending();
+
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * @return current tick deadline relative to timer start or -1 in case timer is stopped
+     */
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+
+        while (true) {
+            long current = System.nanoTime() - startTime;
+            long sleepMs = TimeUnit.NANOSECONDS.toMillis(deadline - current + 999_999);
+
+            if (sleepMs <= 0) {
+                return current;
+            }
+
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                if (!running) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            // timeout may still be in pending queue, it will be skipped on transfer in such case
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    private void transferPending() {
+        for (int i = 0; i < MAX_TRANSFER; i++) {
+            Timeout t = pending.poll();
+            if (t == null) {
+                break;
+            }
+
+            if (t.isCancelled()) {
+                continue;
+            }
+
+            long calculated = t.deadline / tickNanos;
+            t.remainingRounds = (calculated - tick) / wheel.length;
+
+            // timeouts in the past are fired on current tick
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(t);
+            t.transferred = true;
+        }
+    }
+}
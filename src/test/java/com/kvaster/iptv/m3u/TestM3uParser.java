@@ -0,0 +1,138 @@
+package com.kvaster.iptv.m3u;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TestM3uParser {
+    private static final Logger LOG = LoggerFactory.getLogger(TestM3uParser.class);
+
+    public static void main(String[] args) {
+        try {
+            testForms();
+            testStream();
+            benchmark(50_000);
+            LOG.info("done");
+        } catch (Exception e) {
+            LOG.error("error", e);
+        }
+    }
+
+    private static void testForms() {
+        check("#EXTINF:-1 tvg-id=\"id\" tvg-name=\"n\" group-title=\"g\",Channel", "Channel", Set.of("g"), Map.of("tvg-id", "id", "tvg-name", "n"));
+        check("#EXTINF:-1,Channel", "Channel", Set.of(), Map.of());
+        check("#EXTINF:10.5 tvg-id=\"id\",Channel", "Channel", Set.of(), Map.of("tvg-id", "id"));
+
+        // non-standard unquoted values
+        check("#EXTINF:-1 tvg-id=id group-title=g,Channel", "Channel", Set.of("g"), Map.of("tvg-id", "id"));
+        check("#EXTINF:-1 tvg-id=id tvg-name=\"n\" Channel", "Channel", Set.of(), Map.of("tvg-id", "id", "tvg-name", "n"));
+        check("#EXTINF:-1 tvg-id=id tvg-logo=http://logo/a.png,Channel", "Channel", Set.of(), Map.of("tvg-id", "id", "tvg-logo", "http://logo/a.png"));
+
+        // comma inside quoted value and in name
+        check("#EXTINF:-1 tvg-name=\"a, b\",Channel, HD", "Channel, HD", Set.of(), Map.of("tvg-name", "a, b"));
+
+        // malformed property is skipped
+        check("#EXTINF:-1 tvg-id=\"id\" broken tvg-logo=\"l\",Channel", "Channel", Set.of(), Map.of("tvg-id", "id", "tvg-logo", "l"));
+
+        // ext group
+        check("#EXTINF:-1,Channel\n#EXTGRP:a;b ; c", "Channel", Set.of("a", "b", "c"), Map.of());
+
+        M3uDoc doc = M3uParser.parse("#EXTM3U url-tvg=\"http://epg\"\r\n#EXTINF:-1,A\r\nhttp://a\r\n#EXTVLCOPT:x=y\r\n# comment\r\n#EXTINF:-1,B\r\nhttp://b\r\n");
+        assertEquals("http://epg", doc.getProps().get("url-tvg"));
+        assertEquals(2, doc.getChannels().size());
+        assertEquals("http://b", doc.getChannels().get(1).getUrl());
+
+        assertEquals(null, M3uParser.parse("#EXTINF:abc,Channel\nhttp://a\n"));
+    }
+
+    private static void testStream() throws IOException {
+        String content = createPlaylist(10_000);
+
+        M3uDoc doc = M3uParser.parse(content);
+        M3uDoc streamed = M3uParser.parse(new StringReader(content), null);
+        assertEquals(doc.getChannels().size(), streamed.getChannels().size());
+        for (int i = 0; i < doc.getChannels().size(); i++) {
+            M3uChannel c1 = doc.getChannels().get(i);
+            M3uChannel c2 = streamed.getChannels().get(i);
+            assertEquals(c1.getName(), c2.getName());
+            assertEquals(c1.getUrl(), c2.getUrl());
+            assertEquals(c1.getGroups(), c2.getGroups());
+            assertEquals(c1.getProps(), c2.getProps());
+        }
+
+        // line longer then read buffer
+        String longName = "x".repeat(200_000);
+        streamed = M3uParser.parse(new StringReader("#EXTINF:-1," + longName + "\nhttp://a"), null);
+        assertEquals(longName, streamed.getChannels().get(0).getName());
+
+        streamed = M3uParser.parse(new StringReader(content), (groups) -> groups.contains("Group 1"));
+        assertEquals(200, streamed.getChannels().size());
+
+        // duplicate is kept once channel was accepted, same as when filtering after dedupe by name
+        String duplicates = "#EXTINF:-1 group-title=\"b\",A\nhttp://a1\n#EXTINF:-1 group-title=\"a\",A\nhttp://a2\n" +
+                "#EXTINF:-1 group-title=\"b\",A\nhttp://a3\n#EXTINF:-1 group-title=\"b\",B\nhttp://b1\n";
+        streamed = M3uParser.parse(new StringReader(duplicates), (groups) -> groups.contains("a"));
+        assertEquals(2, streamed.getChannels().size());
+        assertEquals("http://a2", streamed.getChannels().get(0).getUrl());
+        assertEquals("http://a3", streamed.getChannels().get(1).getUrl());
+    }
+
+    private static void check(String info, String name, Set<String> groups, Map<String, String> props) {
+        M3uDoc doc = M3uParser.parse("#EXTM3U\n" + info + "\nhttp://host/stream\n");
+        assertEquals(1, doc.getChannels().size());
+
+        M3uChannel ch = doc.getChannels().get(0);
+        assertEquals(name, ch.getName());
+        assertEquals(groups, ch.getGroups());
+        assertEquals(props, ch.getProps());
+        assertEquals("http://host/stream", ch.getUrl());
+    }
+
+    private static void assertEquals(Object expected, Object actual) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError("expected: " + expected + ", actual: " + actual);
+        }
+    }
+
+    private static String createPlaylist(int count) {
+        StringBuilder sb = new StringBuilder("#EXTM3U url-tvg=\"http://epg.example.com/epg.xml.gz\"\n");
+        for (int i = 0; i < count; i++) {
+            sb.append("#EXTINF:-1 tvg-id=\"ch").append(i).append("\" tvg-name=\"Channel ").append(i)
+                    .append("\" tvg-logo=\"http://logo.example.com/").append(i).append(".png\" catchup-days=\"7\" group-title=\"Group ")
+                    .append(i % 50).append("\",Channel ").append(i).append(" HD\n")
+                    .append("http://stream.example.com/live/user/pass/").append(i).append(".m3u8\n");
+        }
+        return sb.toString();
+    }
+
+    private static void benchmark(int count) {
+        String content = createPlaylist(count);
+
+        for (int i = 0; i < 5; i++) {
+            M3uParser.parse(content);
+            LegacyM3uParser.parse(content);
+        }
+
+        int rounds = 10;
+        long legacy = time(() -> LegacyM3uParser.parse(content), rounds);
+        long scanner = time(() -> M3uParser.parse(content), rounds);
+
+        double mb = content.length() / 1024.0 / 1024.0;
+        LOG.info("channels: {}, size: {} MB", count, String.format("%.1f", mb));
+        LOG.info("legacy: {} ms, {} MB/s", legacy, String.format("%.1f", mb * 1000 / legacy));
+        LOG.info("scanner: {} ms, {} MB/s", scanner, String.format("%.1f", mb * 1000 / scanner));
+    }
+
+    private static long time(Runnable r, int rounds) {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            r.run();
+        }
+        return (System.nanoTime() - start) / 1_000_000 / rounds;
+    }
+}
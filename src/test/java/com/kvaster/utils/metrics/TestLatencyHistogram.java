@@ -0,0 +1,148 @@
+package com.kvaster.utils.metrics;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TestLatencyHistogram {
+    private static final Logger LOG = LoggerFactory.getLogger(TestLatencyHistogram.class);
+
+    private static final int THREADS = 4;
+    private static final int VALUES = 1_000_000;
+
+    public static void main(String[] args) {
+        try {
+            testBuckets();
+            testPercentiles();
+            testSince();
+            testThreads();
+            benchmark();
+            LOG.info("done");
+        } catch (Exception e) {
+            LOG.error("error", e);
+        }
+    }
+
+    private static void testBuckets() {
+        int prev = -1;
+        for (long v = 0; v < 1_000_000; v++) {
+            int idx = LatencyHistogram.index(v);
+            if (idx != prev && idx != prev + 1) {
+                throw new AssertionError("buckets are not contiguous at: " + v);
+            }
+            if (v > LatencyHistogram.upperBound(idx) || (idx > 0 && v <= LatencyHistogram.upperBound(idx - 1))) {
+                throw new AssertionError("value is out of bucket: " + v);
+            }
+            prev = idx;
+        }
+    }
+
+    private static void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+
+        // log-normal like latencies in micros
+        SplittableRandom rnd = new SplittableRandom(1);
+        long[] values = new long[VALUES];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(rnd.nextDouble(4, 16));
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(VALUES, s.getCount());
+        assertEquals(values[values.length - 1], s.getMax());
+
+        for (double p : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            long expected = values[(int) Math.ceil(p * values.length) - 1];
+            long actual = s.percentile(p);
+            double error = Math.abs(actual - expected) / (double) expected;
+            if (error > 1.0 / 32) {
+                throw new AssertionError("p" + p + " expected: " + expected + ", actual: " + actual);
+            }
+            LOG.info("p{}: exact {}, histogram {}, error {}%", p, expected, actual, String.format("%.2f", error * 100));
+        }
+    }
+
+    private static void testSince() {
+        LatencyHistogram h = new LatencyHistogram();
+
+        for (int i = 0; i < 1000; i++) {
+            h.record(100_000);
+        }
+        LatencyHistogram.Snapshot earlier = h.snapshot();
+
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+        LatencyHistogram.Snapshot s = h.snapshot().since(earlier);
+
+        // old slow values must not affect percentiles of later interval, max is known only with bucket precision
+        assertEquals(1000, s.getCount());
+        assertEquals(500500, s.getSum());
+        if (s.percentile(0.999) > 1000 + 1000 / 32 || s.getMax() > 1000 + 1000 / 32) {
+            throw new AssertionError("old values in interval: p999 " + s.percentile(0.999) + ", max " + s.getMax());
+        }
+
+        assertEquals(0, h.snapshot().since(h.snapshot()).getCount());
+    }
+
+    private static void testThreads() throws InterruptedException {
+        LatencyHistogram h = new LatencyHistogram();
+
+        // shards of finished threads are folded to retired shard
+        for (int round = 0; round < 3; round++) {
+            Thread[] threads = new Thread[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < VALUES; i++) {
+                        h.record(i & 1023);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+
+            assertEquals((long) (round + 1) * THREADS * VALUES, h.snapshot().getCount());
+        }
+    }
+
+    private static void benchmark() throws InterruptedException {
+        LatencyHistogram h = new LatencyHistogram();
+        LongAdder adder = new LongAdder();
+
+        for (int i = 0; i < 3; i++) {
+            long hist = time(() -> h.record(System.nanoTime() & 0xfffff));
+            long add = time(() -> adder.add(System.nanoTime() & 0xfffff));
+            LOG.info("{} threads: histogram {} ops/ms, LongAdder {} ops/ms", THREADS, hist, add);
+        }
+    }
+
+    private static long time(Runnable r) throws InterruptedException {
+        Thread[] threads = new Thread[THREADS];
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < VALUES; i++) {
+                    r.run();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return (long) THREADS * VALUES * 1_000_000 / Math.max(1, System.nanoTime() - start);
+    }
+
+    private static void assertEquals(long expected, long actual) {
+        if (expected != actual) {
+            throw new AssertionError("expected: " + expected + ", actual: " + actual);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.kvaster.utils.timer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TestHashedWheelTimer {
+    private static final Logger LOG = LoggerFactory.getLogger(TestHashedWheelTimer.class);
+
+    private static final int TIMERS = 10_000;
+    private static final int RESCHEDULES = 100;
+    private static final int THREADS = 8;
+
+    public static void main(String[] args) {
+        try {
+            testFire();
+            testCancel();
+            benchmark();
+            LOG.info("done");
+        } catch (Exception e) {
+            LOG.error("error", e);
+        }
+    }
+
+    private static void testFire() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer("test", 10, TimeUnit.MILLISECONDS, 64);
+
+        CountDownLatch latch = new CountDownLatch(TIMERS);
+        AtomicLong maxLate = new AtomicLong();
+        AtomicLong early = new AtomicLong();
+
+        for (int i = 0; i < TIMERS; i++) {
+            // delays are longer then one wheel round
+            long delay = ThreadLocalRandom.current().nextLong(2000);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            timer.schedule(() -> {
+                long late = System.nanoTime() - deadline;
+                if (late < 0) {
+                    early.incrementAndGet();
+                }
+                maxLate.accumulateAndGet(late, Math::max);
+                latch.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        if (!latch.await(5, TimeUnit.SECONDS)) {
+            throw new AssertionError("not all timeouts are fired: " + latch.getCount());
+        }
+
+        if (early.get() > 0) {
+            throw new AssertionError("timeouts fired too early: " + early.get());
+        }
+
+        LOG.info("all timeouts fired, max lateness: {}ms", TimeUnit.NANOSECONDS.toMillis(maxLate.get()));
+
+        timer.stop();
+    }
+
+    private static void testCancel() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer("test", 10, TimeUnit.MILLISECONDS, 64);
+
+        AtomicLong fired = new AtomicLong();
+        for (int i = 0; i < TIMERS; i++) {
+            HashedWheelTimer.Timeout t = timer.schedule(fired::incrementAndGet, i % 200, TimeUnit.MILLISECONDS);
+            if (!t.cancel()) {
+                throw new AssertionError("timeout is not cancelled");
+            }
+        }
+
+        Thread.sleep(500);
+
+        if (fired.get() != 0) {
+            throw new AssertionError("cancelled timeouts fired: " + fired.get());
+        }
+
+        timer.stop();
+    }
+
+    /**
+     * Timers are constantly rescheduled from several threads - same as user expiry and stream read timeouts.
+     */
+    private static void benchmark() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            benchmarkWheel();
+            benchmarkExecutor();
+        }
+    }
+
+    private static void benchmarkWheel() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer("bench", 10, TimeUnit.MILLISECONDS, 512);
+
+        HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[TIMERS];
+        long time = run((idx) -> {
+            HashedWheelTimer.Timeout t = timeouts[idx];
+            if (t != null) {
+                t.cancel();
+            }
+            timeouts[idx] = timer.schedule(() -> {}, 30, TimeUnit.SECONDS);
+        });
+
+        LOG.info("wheel: {} ms, {} ops/ms", time, TIMERS * RESCHEDULES / Math.max(1, time));
+
+        timer.stop();
+    }
+
+    private static void benchmarkExecutor() throws InterruptedException {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2);
+        executor.setRemoveOnCancelPolicy(true);
+
+        Future<?>[] futures = new Future[TIMERS];
+        long time = run((idx) -> {
+            Future<?> f = futures[idx];
+            if (f != null) {
+                f.cancel(false);
+            }
+            futures[idx] = executor.schedule(() -> {}, 30, TimeUnit.SECONDS);
+        });
+
+        LOG.info("executor: {} ms, {} ops/ms", time, TIMERS * RESCHEDULES / Math.max(1, time));
+
+        executor.shutdownNow();
+    }
+
+    private interface Op {
+        void run(int idx);
+    }
+
+    private static long run(Op op) throws InterruptedException {
+        Thread[] threads = new Thread[THREADS];
+        long start = System.nanoTime();
+
+        for (int t = 0; t < THREADS; t++) {
+            final int from = TIMERS / THREADS * t;
+            final int to = from + TIMERS / THREADS;
+            threads[t] = new Thread(() -> {
+                for (int r = 0; r < RESCHEDULES; r++) {
+                    for (int i = from; i < to; i++) {
+                        op.run(i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}